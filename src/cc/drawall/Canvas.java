@@ -16,19 +16,19 @@ package cc.drawall;
 import java.awt.BasicStroke;
 import java.awt.Font;
 import java.awt.Shape;
-import java.awt.font.FontRenderContext;
 import java.awt.font.TextAttribute;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Arc2D;
 import java.awt.geom.Area;
 import java.awt.geom.NoninvertibleTransformException;
 import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
-import java.lang.reflect.Field;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javafx.scene.paint.Color;
 
@@ -49,6 +49,12 @@ public class Canvas {
 	public static enum LineJoin { MITER, ROUND, BEVEL; }
 
 	private static final float MIN_ALPHA = .25f;
+	/* Maximum distance between curves and the lines approximating them when clipping lines */
+	private static final double FLATNESS = .05;
+
+	/* Strokes in use, shared by all canvases since a BasicStroke is immutable */
+	private static final int MAX_STROKES = 256;
+	private static final Map<BasicStroke, BasicStroke> strokes = new ConcurrentHashMap<>();
 
 	private Map<TextAttribute, Object> textAttrs = new HashMap<>(); {
 		textAttrs.put(TextAttribute.KERNING, TextAttribute.KERNING_ON);
@@ -56,25 +62,43 @@ public class Canvas {
 	}
 
 	/* Graphical state information */
-	private final AffineTransform ctm = new AffineTransform();
+	private AffineTransform ctm = new AffineTransform();
 	private Area clippath = new Area(new Rectangle2D.Float(
 		-Float.MAX_VALUE/2, -Float.MAX_VALUE/2,
 		Float.MAX_VALUE, Float.MAX_VALUE));
+	/* Bounds of the clipping path, and whether the clipping path is exactly that rectangle */
+	private Rectangle2D clipBounds = clippath.getBounds2D();
+	private boolean clipRectangular = true;
 	private boolean relative;
 	private final Path2D path = new Path2D.Float();
 	private Color[] colors = {Color.BLACK, CURRENT_COLOR, CURRENT_COLOR};
-	private BasicStroke stroke = new BasicStroke(1, 0, 0, 10);
+	/* Stroke parameters, and the stroke they describe once it is needed */
+	private float strokeWidth = 1;
+	private LineCap lineCap = LineCap.BUTT;
+	private LineJoin lineJoin = LineJoin.MITER;
+	private float miterLimit = 10;
+	private float[] dash;
+	private float dashPhase;
+	private BasicStroke stroke;
 
 	/* Saved graphical context. */
-	private Canvas prev;
+	private State prev;
+	/* Whether each mutable component of the state is shared with the saved context, and must
+	 * be copied before being modified */
+	private boolean ctmShared, clipShared, colorsShared, textShared;
 
 	/* First control point of a following smooth curve */
 	private Point2D.Float smooth;
 
 	private final Output sink;
+	/* Whether strokes are painted as their centerline instead of their outline */
+	private final boolean centerline;
+	/* Segments of the shape being painted, reused for every shape */
+	private final Segments scratch = new Segments();
 
 	public Canvas(final Output sink) {
 		this.sink = sink;
+		this.centerline = sink.centerline();
 	}
 
 	///////////////////////
@@ -226,7 +250,13 @@ public class Canvas {
 	/** Intersects the clipping area with the interior of the specified shape.
 	  * @param s the Shape to be intersected with the current Clip  */
 	public void clip(final Shape s) {
+		if (clipShared) {
+			clippath = (Area) clippath.clone();
+			clipShared = false;
+		}
 		clippath.intersect(new Area(s));
+		clipBounds = clippath.getBounds2D();
+		clipRectangular = clippath.isRectangular();
 	}
 
 	/** Returns the smallest rectangle that completely encloses the current path.
@@ -240,10 +270,8 @@ public class Canvas {
 	  * @param text the text to be outlined */
 	public void charpath(final String text) {
 		// TODO: interact correctly with ctm
-		final Font font = new Font(textAttrs);
 		final AffineTransform t = relativeTransform();
-		path.append(t.createTransformedShape(font.createGlyphVector(
-			new FontRenderContext(null, true, false), text).getOutline()), false);
+		path.append(t.createTransformedShape(Glyphs.outline(textAttrs, text)), false);
 	}
 
 	private AffineTransform relativeTransform() {
@@ -290,16 +318,134 @@ public class Canvas {
 			|| path.getCurrentPoint() == null) {
 			return this;
 		}
-		final Area area = new Area(mode == Mode.STROKE ? stroked(path) : path);
+		if (mode == Mode.STROKE && centerline) {
+			return drawCenterline(color);
+		}
+		final Shape shape = mode == Mode.STROKE ? stroked(path) : path;
+		final Rectangle2D bounds = shape.getBounds2D();
+		if (!clipBounds.intersects(bounds)) {
+			return this;
+		}
+		// Building an Area is costly: only do it to clip the shape against the clipping path,
+		// or to resolve the even-odd rule, which outputs know nothing about.
+		if (clipRectangular && clipBounds.contains(bounds)
+				&& shape.getPathIterator(null).getWindingRule() == Path2D.WIND_NON_ZERO) {
+			sink.paint(color, shape, scratch);
+			return this;
+		}
+		final Area area = new Area(shape);
 		area.intersect(clippath);
-		sink.paint(color, area);
+		sink.paint(color, area, scratch);
+		return this;
+	}
+
+	/* Paints the path itself, clipped as a set of lines rather than as an area. Lines may
+	 * have empty bounds, hence the comparisons instead of Rectangle2D methods. */
+	private Canvas drawCenterline(final Color color) {
+		final Rectangle2D bounds = path.getBounds2D();
+		if (bounds.getMinX() > clipBounds.getMaxX() || bounds.getMaxX() < clipBounds.getMinX()
+				|| bounds.getMinY() > clipBounds.getMaxY() || bounds.getMaxY() < clipBounds.getMinY()) {
+			return this;
+		}
+		if (clipRectangular && bounds.getMinX() >= clipBounds.getMinX()
+				&& bounds.getMaxX() <= clipBounds.getMaxX() && bounds.getMinY() >= clipBounds.getMinY()
+				&& bounds.getMaxY() <= clipBounds.getMaxY()) {
+			sink.paint(color, path, scratch);
+			return this;
+		}
+		sink.paint(color, clipLines(path.getPathIterator(null, FLATNESS)), scratch);
 		return this;
 	}
 
+	/* Flattens the specified path and keeps the parts of its lines inside the clipping path.
+	 * Each line is cut where it crosses the edges of the clipping path, and each piece is kept
+	 * if its middle is inside. */
+	private Path2D clipLines(final PathIterator lines) {
+		final double[] edges = flatten(clippath.getPathIterator(null, FLATNESS));
+		final Path2D result = new Path2D.Float();
+		final double[] coords = new double[6];
+		double[] cuts = new double[16];
+		double startX = 0, startY = 0, x0 = 0, y0 = 0;
+		double penX = Double.NaN, penY = Double.NaN;
+		for (; !lines.isDone(); lines.next()) {
+			final int type = lines.currentSegment(coords);
+			if (type == PathIterator.SEG_MOVETO) {
+				startX = x0 = coords[0];
+				startY = y0 = coords[1];
+				continue;
+			}
+			final double x1 = type == PathIterator.SEG_CLOSE ? startX : coords[0];
+			final double y1 = type == PathIterator.SEG_CLOSE ? startY : coords[1];
+			final double dx = x1 - x0, dy = y1 - y0;
+			int numCuts = 0;
+			cuts[numCuts++] = 0;
+			for (int i = 0; i < edges.length; i += 4) {
+				final double ex = edges[i + 2] - edges[i], ey = edges[i + 3] - edges[i + 1];
+				final double denom = dx * ey - dy * ex;
+				if (denom == 0) {
+					continue;
+				}
+				final double t = ((edges[i] - x0) * ey - (edges[i + 1] - y0) * ex) / denom;
+				final double u = ((edges[i] - x0) * dy - (edges[i + 1] - y0) * dx) / denom;
+				if (t > 0 && t < 1 && u >= 0 && u <= 1) {
+					if (numCuts == cuts.length - 1) {
+						cuts = Arrays.copyOf(cuts, 2 * cuts.length);
+					}
+					cuts[numCuts++] = t;
+				}
+			}
+			cuts[numCuts++] = 1;
+			Arrays.sort(cuts, 0, numCuts);
+			for (int i = 1; i < numCuts; i++) {
+				final double t0 = cuts[i - 1], t1 = cuts[i];
+				if (t1 > t0 && clippath.contains(x0 + dx * (t0 + t1) / 2, y0 + dy * (t0 + t1) / 2)) {
+					final double ax = x0 + dx * t0, ay = y0 + dy * t0;
+					if (ax != penX || ay != penY) {
+						result.moveTo(ax, ay);
+					}
+					penX = x0 + dx * t1;
+					penY = y0 + dy * t1;
+					result.lineTo(penX, penY);
+				}
+			}
+			x0 = x1;
+			y0 = y1;
+		}
+		return result;
+	}
+
+	/* Returns the edges of a flattened path, as x0, y0, x1, y1 quadruples. */
+	private static double[] flatten(final PathIterator lines) {
+		final double[] coords = new double[6];
+		double[] edges = new double[64];
+		int size = 0;
+		double startX = 0, startY = 0, x0 = 0, y0 = 0;
+		for (; !lines.isDone(); lines.next()) {
+			final int type = lines.currentSegment(coords);
+			if (type == PathIterator.SEG_MOVETO) {
+				startX = x0 = coords[0];
+				startY = y0 = coords[1];
+				continue;
+			}
+			final double x1 = type == PathIterator.SEG_CLOSE ? startX : coords[0];
+			final double y1 = type == PathIterator.SEG_CLOSE ? startY : coords[1];
+			if (size + 4 > edges.length) {
+				edges = Arrays.copyOf(edges, 2 * edges.length);
+			}
+			edges[size++] = x0;
+			edges[size++] = y0;
+			edges[size++] = x1;
+			edges[size++] = y1;
+			x0 = x1;
+			y0 = y1;
+		}
+		return Arrays.copyOf(edges, size);
+	}
+
 	private Shape stroked(final Shape shape) {
 		try {
 			final Shape inverse = ctm.createInverse().createTransformedShape(shape);
-			return ctm.createTransformedShape(stroke.createStrokedShape(inverse));
+			return ctm.createTransformedShape(getStroke().createStrokedShape(inverse));
 		} catch (final NoninvertibleTransformException e) {
 			// Non-invertible transforms squash any shape to empty areas
 			return new Path2D.Float();
@@ -314,14 +460,20 @@ public class Canvas {
 	  * @param width the width of stroked paths
 	  * @see java.awt.BasicStroke */
 	public void setStrokeWidth(final float width) {
-		setStroke("width", width);
+		if (width != strokeWidth) {
+			strokeWidth = Math.max(width, 0);
+			stroke = null;
+		}
 	}
 
 	/** Set the dashing style.
-	  * @param dash an array representing the dashing pattern
+	  * @param dash an array representing the dashing pattern, or null for solid lines
 	  * @see java.awt.BasicStroke */
 	public Canvas setDashArray(final float[] dash) {
-		setStroke("dash", dash);
+		if (!Arrays.equals(dash, this.dash)) {
+			this.dash = dash;
+			stroke = null;
+		}
 		return this;
 	}
 
@@ -329,21 +481,30 @@ public class Canvas {
 	  * @param phase an offset from the start of the dashing pattern
 	  * @see java.awt.BasicStroke */
 	public void setDashOffset(final float phase) {
-		setStroke("dash_phase", phase);
+		if (phase != dashPhase) {
+			dashPhase = phase;
+			stroke = null;
+		}
 	}
 
 	/** Changes the line cap style.
-	  * @param cap either BasicStroke.CAP_BUTT, BasicStroke.CAP_ROUND or BasicStroke.CAP_SQUARE
+	  * @param cap the cap style to use
 	  * @see java.awt.BasicStroke */
 	public void setLineCap(final LineCap cap) {
-		setStroke("cap", cap.ordinal());
+		if (cap != lineCap) {
+			lineCap = cap;
+			stroke = null;
+		}
 	}
 
 	/** Changes the line join style.
 	  * @param join the join style to use
 	  * @see java.awt.BasicStroke */
 	public void setLineJoin(final LineJoin join) {
-		setStroke("join", join.ordinal());
+		if (join != lineJoin) {
+			lineJoin = join;
+			stroke = null;
+		}
 	}
 
 	/** Set the limit to trim a line join when the join style is JOIN_MITER.
@@ -352,21 +513,52 @@ public class Canvas {
 	  * @param limit the maximum allowed ratio of miter length to stroke width
 	  * @see java.awt.BasicStroke */
 	public void setMiterLimit(final float limit) {
-		setStroke("miterlimit", limit);
+		if (limit != miterLimit) {
+			miterLimit = Math.max(limit, 1);
+			stroke = null;
+		}
 	}
 
-	private void setStroke(final String fieldName, final Object value) {
-		try {
-			final Field field = BasicStroke.class.getDeclaredField(fieldName);
-			field.setAccessible(true);
-			field.set(stroke, value);
-		} catch (final IllegalAccessException | NoSuchFieldException e) {
-			throw new AssertionError("No such field: " + fieldName, e);
+	/* Returns the stroke described by the stroke parameters, building it if they changed.
+	 * LineCap and LineJoin constants are in the same order as BasicStroke's. */
+	private BasicStroke getStroke() {
+		if (stroke == null) {
+			final float period = dashPeriod(dash);
+			final BasicStroke s = period > 0
+				? new BasicStroke(strokeWidth, lineCap.ordinal(), lineJoin.ordinal(), miterLimit,
+					dash, (dashPhase % period + period) % period)
+				: new BasicStroke(strokeWidth, lineCap.ordinal(), lineJoin.ordinal(), miterLimit);
+			if (strokes.size() >= MAX_STROKES) {
+				strokes.clear();
+			}
+			final BasicStroke interned = strokes.putIfAbsent(s, s);
+			stroke = interned == null ? s : interned;
 		}
+		return stroke;
+	}
+
+	/* Returns the length after which a dashing pattern repeats, or 0 if it draws solid lines:
+	 * that is, if it is missing, empty, only made of zeros or invalid. */
+	private static float dashPeriod(final float[] dash) {
+		if (dash == null) {
+			return 0;
+		}
+		float sum = 0;
+		for (final float length: dash) {
+			if (length < 0) {
+				return 0;
+			}
+			sum += length;
+		}
+		return dash.length % 2 == 0 ? sum : 2 * sum;
 	}
 
 	public void setColor(final Mode mode, final Color color) {
-		this.colors[mode.ordinal()] = color;
+		if (colorsShared) {
+			colors = colors.clone();
+			colorsShared = false;
+		}
+		colors[mode.ordinal()] = color;
 	}
 
 	public Color getColor(final Mode mode) {
@@ -387,10 +579,16 @@ public class Canvas {
 		return (Path2D) path.clone();
 	}
 
+	/** Returns the current transform matrix, which may be modified in place. */
 	public AffineTransform getTransform() {
+		if (ctmShared) {
+			ctm = new AffineTransform(ctm);
+			ctmShared = false;
+		}
 		return ctm;
 	}
 
+	/** Returns the clipping area, which must not be modified: use clip() instead. */
 	public Area getClip() {
 		return clippath;
 	}
@@ -399,43 +597,99 @@ public class Canvas {
 	  * If no fitting font is found in the system, an attempt is made to load one
 	  * from the ressource files. */
 	public void setFont(final String fontDescriptor) {
-		textAttrs.put(TextAttribute.FAMILY, fontDescriptor);
+		textAttrs().put(TextAttribute.FAMILY, fontDescriptor);
 	}
 
 	public Font getFont() {
-		return new Font(textAttrs);
+		return Glyphs.font(textAttrs);
 	}
 
 	/** Set the font size.
 	  * @param fontSize the desired font size, in points */
 	public void setFontSize(final float fontSize) {
-		textAttrs.put(TextAttribute.SIZE, fontSize);
+		textAttrs().put(TextAttribute.SIZE, fontSize);
+	}
+
+	private Map<TextAttribute, Object> textAttrs() {
+		if (textShared) {
+			textAttrs = new HashMap<>(textAttrs);
+			textShared = false;
+		}
+		return textAttrs;
 	}
 
 	/** Pushes a snapshot of the graphical state on the save stack.
+	  * The snapshot shares its components with the current state; they are only copied when
+	  * they are modified.
 	  * @see restore() */
 	public void save() {
-		final Canvas copy = new Canvas(sink);
-		copy.copy(this);
-		prev = copy;
+		prev = new State(this);
+		ctmShared = clipShared = colorsShared = textShared = true;
 	}
 
 	/** Reverts the graphical state to the latest snapshot.
 	  * The used snapshot is popped from the save stack, so that a later restore()
 	  * will restore an earlier snapshot. */
 	public void restore() {
-		copy(prev);
-	}
-
-	private void copy(final Canvas that) {
-		this.ctm.setTransform(that.ctm);
-		this.clippath = (Area) that.clippath.clone();
-		this.colors = Arrays.copyOf(that.colors, that.colors.length);
-		this.textAttrs = new HashMap<>(that.textAttrs);
-		this.path.setWindingRule(that.path.getWindingRule());
-		this.stroke = new BasicStroke(that.stroke.getLineWidth(), that.stroke.getEndCap(),
-			that.stroke.getLineJoin(), that.stroke.getMiterLimit(),
-			that.stroke.getDashArray(), that.stroke.getDashPhase());
+		assert prev != null : "No saved state";
+		final State that = prev;
+		this.ctm = that.ctm;
+		this.clippath = that.clippath;
+		this.clipBounds = that.clipBounds;
+		this.clipRectangular = that.clipRectangular;
+		this.colors = that.colors;
+		this.textAttrs = that.textAttrs;
+		this.path.setWindingRule(that.windingRule);
+		this.strokeWidth = that.strokeWidth;
+		this.lineCap = that.lineCap;
+		this.lineJoin = that.lineJoin;
+		this.miterLimit = that.miterLimit;
+		this.dash = that.dash;
+		this.dashPhase = that.dashPhase;
+		this.stroke = that.stroke;
 		this.prev = that.prev;
+		// Components are never modified once shared, so they can only be shared with the
+		// snapshots at the top of the stack
+		ctmShared = prev != null && prev.ctm == ctm;
+		clipShared = prev != null && prev.clippath == clippath;
+		colorsShared = prev != null && prev.colors == colors;
+		textShared = prev != null && prev.textAttrs == textAttrs;
+	}
+
+	/* A snapshot of the graphical state, saved by save(). */
+	private static final class State {
+		final AffineTransform ctm;
+		final Area clippath;
+		final Rectangle2D clipBounds;
+		final boolean clipRectangular;
+		final Color[] colors;
+		final Map<TextAttribute, Object> textAttrs;
+		final int windingRule;
+		final float strokeWidth;
+		final LineCap lineCap;
+		final LineJoin lineJoin;
+		final float miterLimit;
+		final float[] dash;
+		final float dashPhase;
+		final BasicStroke stroke;
+		final State prev;
+
+		State(final Canvas canvas) {
+			ctm = canvas.ctm;
+			clippath = canvas.clippath;
+			clipBounds = canvas.clipBounds;
+			clipRectangular = canvas.clipRectangular;
+			colors = canvas.colors;
+			textAttrs = canvas.textAttrs;
+			windingRule = canvas.path.getWindingRule();
+			strokeWidth = canvas.strokeWidth;
+			lineCap = canvas.lineCap;
+			lineJoin = canvas.lineJoin;
+			miterLimit = canvas.miterLimit;
+			dash = canvas.dash;
+			dashPhase = canvas.dashPhase;
+			stroke = canvas.stroke;
+			prev = canvas.prev;
+		}
 	}
 }
@@ -14,25 +14,41 @@
 package cc.drawall;
 
 import java.io.File;
+import java.io.IOError;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.lang.ProcessBuilder.Redirect;
 import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.nio.file.FileSystems;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.InputMismatchException;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /** User interface. */
 final class ConVector {
@@ -52,30 +68,216 @@ final class ConVector {
 			WebService.loop(3434);
 			return;
 		}
-		final List<String> argv = new ArrayList<>(Arrays.asList(args));
+		if (run(Arrays.asList(args), System.out, FileSystems.getDefault().getPath("").toAbsolutePath()) > 0) {
+			System.exit(1);
+		}
+	}
+
+	/** Processes command line arguments.
+	  * @param args the arguments, as given to main
+	  * @param console where to print messages meant for the user
+	  * @param cwd the directory against which relative paths are resolved
+	  * @return the number of conversions that failed */
+	static int run(final List<String> args, final PrintStream console, final Path cwd) {
+		final List<String> argv = new ArrayList<>(args);
 		final Map<String, String> options = new HashMap<>();
 		for (Iterator<String> itr = argv.iterator(); itr.hasNext();) {
 			String arg = itr.next();
 			if (arg.startsWith("--")) {
-				int i = arg.indexOf('=');
-				i = i == -1 ? arg.length() : i;
-				options.put(arg.substring(2, i), arg.substring(i + 1));
+				final int i = arg.indexOf('=');
+				options.put(arg.substring(2, i == -1 ? arg.length() : i), i == -1 ? "" : arg.substring(i + 1));
 				itr.remove();
 			}
 		}
-		argv.stream().map(FileSystems.getDefault()::getPath).reduce((inFile, outFile) -> {
+		if (options.containsKey("daemon")) {
+			Daemon.loop(options.get("daemon").isEmpty() ? Daemon.PORT : Integer.parseInt(options.get("daemon")));
+			return 0;
+		}
+		if (options.containsKey("jobs")) {
+			return batch(argv, options, console, cwd);
+		}
+		final int[] failed = {0};
+		argv.stream().map(cwd::resolve).reduce((inFile, outFile) -> {
 			try (final ReadableByteChannel in = open(inFile, options);
 				final FileChannel out = FileChannel.open(outFile, StandardOpenOption.WRITE,
 						StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
 				options.put("output-type", getExtension(outFile.toString()));
 				convert(in, out, options);
 			} catch (final IOException e) {
+				failed[0]++;
 				log.severe("Problem converting " + inFile + " to " + outFile + ": " + e);
 			}
 			return inFile;
 		});
+		return failed[0];
+	}
+
+
+	/** Converts many files at once on a work-stealing pool.
+	  * Arguments can be files, directories (whose files are all converted) or glob patterns.
+	  * Each file is written to the path given by the `output` option, in which `{name}` stands
+	  * for the input file name without its extension and `{dir}` for its directory.
+	  * Outputs that would overwrite an input or another output are refused beforehand.
+	  * Each output is written to a temporary file first, and only replaces the target once
+	  * complete. A file that cannot be converted is reported and does not stop the others. */
+	private static int batch(final List<String> argv, final Map<String, String> options,
+			final PrintStream console, final Path cwd) {
+		final String pattern = options.get("output");
+		if (pattern == null || pattern.isEmpty()) {
+			console.println("Batch conversions need an output pattern, such as --output=out/{name}.gcode");
+			return 1;
+		}
+		final int jobs;
+		try {
+			// ForkJoinPool supports at most 32767 threads
+			jobs = (int) Math.min(integerOption(options, "jobs", Runtime.getRuntime().availableProcessors(), 1), 0x7fff);
+		} catch (final IllegalArgumentException e) {
+			console.println(e.getMessage());
+			return 1;
+		}
+		// Files designated by several arguments are only converted once
+		final Set<Path> files = new LinkedHashSet<>();
+		for (final String arg: argv) {
+			try {
+				expand(cwd.resolve(arg).toString()).forEach(file -> files.add(file.toAbsolutePath().normalize()));
+			} catch (final IOException e) {
+				log.severe("Cannot list " + arg + ": " + e);
+			}
+		}
+		final Map<Path, Path> outputs = new LinkedHashMap<>();
+		for (final Path inFile: files) {
+			outputs.put(inFile, cwd.resolve(pattern
+				.replace("{dir}", String.valueOf(inFile.getParent()))
+				.replace("{name}", inFile.getFileName().toString().replaceFirst("\\.[^.]*$", "")))
+				.toAbsolutePath().normalize());
+		}
+		final int refused = refuseClashes(outputs, console);
+		final ForkJoinPool pool = new ForkJoinPool(jobs);
+		final AtomicInteger failed = new AtomicInteger(refused);
+		final LongAdder bytes = new LongAdder();
+		final long start = System.nanoTime();
+		final List<ForkJoinTask<?>> tasks = new ArrayList<>(outputs.size());
+		for (final Map.Entry<Path, Path> entry: outputs.entrySet()) {
+			final Path inFile = entry.getKey(), outFile = entry.getValue();
+			tasks.add(pool.submit(() -> {
+				final Map<String, String> fileOptions = new HashMap<>(options);
+				Path tmp = null;
+				try {
+					bytes.add(Files.size(inFile));
+					Files.createDirectories(outFile.getParent());
+					// Not createTempFile, whose files can only be read by their owner
+					tmp = outFile.resolveSibling("." + outFile.getFileName() + '.'
+						+ Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+					try (final ReadableByteChannel in = open(inFile, fileOptions);
+						final FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE,
+								StandardOpenOption.CREATE_NEW)) {
+						fileOptions.put("output-type", getExtension(outFile.toString()));
+						convert(in, out, fileOptions);
+					}
+					Files.move(tmp, outFile, StandardCopyOption.ATOMIC_MOVE);
+				} catch (final IOException | IOError | RuntimeException e) {
+					failed.incrementAndGet();
+					log.severe("Problem converting " + inFile + " to " + outFile + ": " + e);
+					try {
+						if (tmp != null) {
+							Files.deleteIfExists(tmp);
+						}
+					} catch (final IOException f) {
+						log.warning("Cannot remove " + tmp + ": " + f);
+					}
+				}
+			}));
+		}
+		tasks.forEach(ForkJoinTask::join);
+		pool.shutdown();
+		final double seconds = (System.nanoTime() - start) / 1e9;
+		console.format("Converted %d of %d files in %.2f s: %.1f files/s, %.2f MB/s read%n",
+			files.size() - failed.get(), files.size(), seconds, files.size() / seconds,
+			bytes.sum() / seconds / 1e6);
+		return failed.get();
+	}
+
+	/* Removes from a map of inputs to outputs the conversions whose output is one of the inputs,
+	 * or is shared with other conversions, and returns how many were removed. */
+	private static int refuseClashes(final Map<Path, Path> outputs, final PrintStream console) {
+		final Set<Path> inputs = new HashSet<>(outputs.keySet());
+		final Map<Path, Integer> uses = new HashMap<>();
+		outputs.values().forEach(outFile -> uses.merge(outFile, 1, Integer::sum));
+		// Existing files are identified by their file key, which also catches links
+		final Map<Object, Path> keys = new HashMap<>();
+		final List<Path> keyless = new ArrayList<>();
+		for (final Path inFile: inputs) {
+			final Object key = fileKey(inFile);
+			if (key == null) {
+				keyless.add(inFile);
+			} else {
+				keys.put(key, inFile);
+			}
+		}
+		int refused = 0;
+		for (final Iterator<Map.Entry<Path, Path>> itr = outputs.entrySet().iterator(); itr.hasNext();) {
+			final Map.Entry<Path, Path> entry = itr.next();
+			final Path outFile = entry.getValue();
+			Path input = inputs.contains(outFile) ? outFile : null;
+			if (input == null && Files.exists(outFile)) {
+				final Object key = fileKey(outFile);
+				input = key == null ? null : keys.get(key);
+				for (final Iterator<Path> candidates = keyless.iterator(); input == null && candidates.hasNext();) {
+					final Path candidate = candidates.next();
+					input = isSameFile(candidate, outFile) ? candidate : null;
+				}
+			}
+			if (input != null) {
+				console.println("Refusing to overwrite input " + input + " with the conversion of " + entry.getKey());
+			} else if (uses.get(outFile) > 1) {
+				console.println("Refusing to convert " + entry.getKey() + ": other inputs are also converted to " + outFile);
+			} else {
+				continue;
+			}
+			itr.remove();
+			refused++;
+		}
+		return refused;
+	}
+
+	private static Object fileKey(final Path file) {
+		try {
+			return Files.readAttributes(file, BasicFileAttributes.class).fileKey();
+		} catch (final IOException e) {
+			return null;
+		}
+	}
+
+	private static boolean isSameFile(final Path a, final Path b) {
+		try {
+			return Files.isSameFile(a, b);
+		} catch (final IOException e) {
+			return false;
+		}
+	}
+
+	/* Returns the files designated by a batch argument: a file, a directory or a glob pattern. */
+	private static List<Path> expand(final String arg) throws IOException {
+		final Path path = FileSystems.getDefault().getPath(arg);
+		final int wildcard = arg.replaceFirst("[*?\\[{].*", "").length();
+		if (Files.isDirectory(path)) {
+			try (final Stream<Path> list = Files.list(path)) {
+				return list.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+			}
+		} else if (wildcard == arg.length()) {
+			return Collections.singletonList(path);
+		}
+		// Walk the tree below the last directory before the first wildcard
+		final int slash = arg.lastIndexOf('/', wildcard);
+		final Path base = FileSystems.getDefault().getPath(slash == -1 ? "." : arg.substring(0, slash + 1));
+		final PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + arg);
+		try (final Stream<Path> walk = Files.walk(base)) {
+			return walk.filter(Files::isRegularFile)
+				.filter(file -> matcher.matches(slash == -1 ? base.relativize(file) : file))
+				.sorted().collect(Collectors.toList());
+		}
 	}
-	
+
 	private static ReadableByteChannel open(final Path file, final Map<String, String> options) throws IOException {
 		if (!options.containsKey("canny")) {
 			options.put("input-type", getExtension(file.toString()));
@@ -93,12 +295,76 @@ final class ConVector {
 	}
 
 	public static void convert(final ReadableByteChannel in, final WritableByteChannel out, final Map<String, String> options) {
-		Output output = new SimpleOutput(out, exporter(options.get("output-type")));
+		final SimpleOutput simple = new SimpleOutput(out, exporter(options.get("output-type")));
+		if (options.containsKey("strokes")) {
+			final String strokes = options.get("strokes");
+			if (!"outline".equals(strokes) && !"centerline".equals(strokes)) {
+				throw new IllegalArgumentException("Unknown stroke mode: " + strokes);
+			}
+			if ("centerline".equals(strokes) && options.containsKey("merge")) {
+				throw new IllegalArgumentException("Stroke centerlines can't be merged, use --strokes=outline");
+			}
+			if ("centerline".equals(strokes) && simple.exporter.fills()) {
+				throw new IllegalArgumentException("Stroke centerlines can't be exported to "
+					+ options.get("output-type") + ", use --strokes=outline");
+			}
+			simple.setCenterline("centerline".equals(strokes));
+		}
+		Output output = simple;
+		if (options.containsKey("flatten") || !simple.exporter.curves()) {
+			final String flatten = options.getOrDefault("flatten", "");
+			final double tolerance = flatten.isEmpty() ? Flattener.DEFAULT_TOLERANCE : Double.parseDouble(flatten);
+			if (!(tolerance > 0)) {
+				throw new IllegalArgumentException("Flattening tolerance must be positive: " + flatten);
+			}
+			output = new Flattener(output, tolerance);
+		}
+		Drawing drawing = null;
 		if (options.containsKey("merge") || options.containsKey("optimize")) {
-			output = new Drawing(output, options.containsKey("merge"), options.containsKey("optimize"));
+			// Without a value, use enough tiles to keep every core busy
+			final long tiles = integerOption(options, "tiles", "".equals(options.get("tiles"))
+				? (long) Math.ceil(Math.sqrt(Runtime.getRuntime().availableProcessors())) : 1, 1);
+			// The budget is given in MiB; 0 means no limit
+			final long budget = integerOption(options, "budget", 0, 0);
+			drawing = new Drawing(output, options.containsKey("merge"), options.containsKey("optimize"))
+				// Beyond a million tiles, clipping costs far more than merging could save
+				.setTiles((int) Math.min(tiles, 1 << 10))
+				.setBudget(Math.min(budget, Long.MAX_VALUE >> 20) << 20);
+			output = drawing;
+		}
+		try {
+			final long start = System.nanoTime();
+			importer(options.get("input-type")).process(in, output);
+			// Segments may be exported as they are imported; count that time as exporting only
+			Metrics.importing.record(System.nanoTime() - start - simple.nanos);
+			output.writeFooter();
+		} finally {
+			// Removes the spill files, even when the importer or the exporter failed
+			if (drawing != null) {
+				drawing.close();
+			}
+		}
+	}
+
+	/* Returns the integer value of an option, or the default if it is absent or has no value.
+	 * Values that are not integers, or are below the minimum, are rejected with a message
+	 * meant for the user. */
+	private static long integerOption(final Map<String, String> options, final String name,
+			final long byDefault, final long min) {
+		final String value = options.getOrDefault(name, "");
+		if (value.isEmpty()) {
+			return byDefault;
 		}
-		importer(options.get("input-type")).process(in, output);
-		output.writeFooter();
+		final long result;
+		try {
+			result = Long.parseLong(value);
+		} catch (final NumberFormatException e) {
+			throw new IllegalArgumentException("--" + name + " takes an integer: " + value);
+		}
+		if (result < min) {
+			throw new IllegalArgumentException("--" + name + " must be at least " + min + ": " + value);
+		}
+		return result;
 	}
 
 	private static String getExtension(final String filename) {
@@ -112,23 +378,11 @@ final class ConVector {
 	  * @param filetype indicates how to interpret read data
 	  * @return the resulting vector */
 	private static Importer importer(final String filetype) {
-		for (final Importer importer: ServiceLoader.load(Importer.class)) {
-			final String name = importer.getClass().getSimpleName().replace("Importer", "");
-			if (name.equalsIgnoreCase(filetype)) {
-				return importer;
-			}
-		}
-		throw new InputMismatchException("No suitable importer found for " + filetype);
+		return Plugins.importers.create(filetype);
 	}
 
 	/** Writes a drawing to a stream, using a plugin appropriate for the specified filetype. */
 	private static Exporter exporter(final String filetype) {
-		for (final Exporter exporter: ServiceLoader.load(Exporter.class)) {
-			final String name = exporter.getClass().getSimpleName().replace("Exporter", "");
-			if (name.equalsIgnoreCase(filetype)) {
-				return exporter;
-			}
-		}
-		throw new InputMismatchException("No suitable exporter found for " + filetype);
+		return Plugins.exporters.create(filetype);
 	}
 }
@@ -0,0 +1,258 @@
+/*
+ * This file is part of DraWall.
+ * DraWall is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * DraWall is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of the GNU
+ * General Public License along with DraWall. If not, see <http://www.gnu.org/licenses/>.
+ * © 2012–2014 Nathanaël Jourdane
+ * © 2014-2015 Victor Adam
+ */
+
+package cc.drawall;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/** A cache of conversion results, keyed by a hash of the input and of the conversion options.
+  * The most recently used results are kept in memory, up to a total size in bytes. Identical
+  * conversions requested concurrently are only run once, and their result is shared.
+  * If a directory is specified, results are also stored there and survive restarts. The files
+  * there are bounded too: the least recently used ones are deleted to make room. */
+final class ConversionCache {
+	private static final Logger log = Logger.getLogger(ConversionCache.class.getName());
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	private final long capacity;
+	private final Path directory;
+	private long size;
+
+	/* Total size of the files in the directory, and the size beyond which the oldest are deleted. */
+	private final long diskCapacity;
+	private long diskSize;
+
+	/* Cached results, in access order. */
+	private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<>(16, .75f, true);
+
+	/* Conversions currently running, so that identical requests can wait for them. */
+	private final Map<String, CompletableFuture<byte[]>> running = new ConcurrentHashMap<>();
+
+	/** Constructs a cache.
+	  * @param capacity the total size of the results kept in memory, in bytes
+	  * @param directory where to store results, or null to keep them in memory only
+	  * @param diskCapacity the total size of the results kept in the directory, in bytes */
+	ConversionCache(final long capacity, final Path directory, final long diskCapacity) {
+		this.capacity = capacity;
+		this.directory = directory;
+		this.diskCapacity = diskCapacity;
+		if (directory != null && Files.isDirectory(directory)) {
+			try (final Stream<Path> files = Files.list(directory)) {
+				diskSize = files.mapToLong(ConversionCache::fileSize).sum();
+			} catch (final IOException e) {
+				log.warning("Cannot list cached results in " + directory + ": " + e);
+			}
+		}
+	}
+
+	/** Constructs a cache configured by the `cache.bytes`, `cache.dir` and `cache.dir.bytes`
+	  * system properties. */
+	static ConversionCache fromProperties() {
+		final String dir = System.getProperty("cache.dir");
+		return new ConversionCache(Long.getLong("cache.bytes", 64L << 20), dir == null ? null : Paths.get(dir),
+			Long.getLong("cache.dir.bytes", 1L << 30));
+	}
+
+	/** Returns the key identifying the conversion of the specified input with the specified
+	  * options: a SHA-256 hash of both, in hexadecimal.
+	  * Every field is preceded by its length, so that no input can pass for another one
+	  * with different options. */
+	static String key(final byte[] input, final int length, final Map<String, String> options) {
+		final MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (final NoSuchAlgorithmException e) {
+			throw new AssertionError(e);
+		}
+		update(digest, options.size());
+		for (final Map.Entry<String, String> option: new TreeMap<>(options).entrySet()) {
+			update(digest, option.getKey().getBytes(UTF8));
+			update(digest, option.getValue().getBytes(UTF8));
+		}
+		update(digest, length);
+		digest.update(input, 0, length);
+		final char[] hex = new char[2 * digest.getDigestLength()];
+		int i = 0;
+		for (final byte b: digest.digest()) {
+			hex[i++] = HEX_DIGITS[(b >> 4) & 0xF];
+			hex[i++] = HEX_DIGITS[b & 0xF];
+		}
+		return new String(hex);
+	}
+
+	/* Hashes a field preceded by its length. */
+	private static void update(final MessageDigest digest, final byte[] field) {
+		update(digest, field.length);
+		digest.update(field);
+	}
+
+	private static void update(final MessageDigest digest, final int value) {
+		digest.update(new byte[] {(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value});
+	}
+
+	/** Returns the cached result for the specified key, running the conversion if there is none.
+	  * If the same conversion is already running, waits for it instead. */
+	byte[] get(final String key, final Supplier<byte[]> conversion) {
+		byte[] result = lookup(key);
+		if (result != null) {
+			return result;
+		}
+		final CompletableFuture<byte[]> future = new CompletableFuture<>();
+		final CompletableFuture<byte[]> pending = running.putIfAbsent(key, future);
+		if (pending != null) {
+			log.fine("Waiting for identical conversion " + key);
+			return pending.join();
+		}
+		try {
+			// Check again, in case the conversion finished since the first lookup
+			result = lookup(key);
+			if (result == null) {
+				result = conversion.get();
+				store(key, result);
+			}
+			future.complete(result);
+			return result;
+		} catch (final RuntimeException | Error e) {
+			future.completeExceptionally(e);
+			throw e;
+		} finally {
+			running.remove(key);
+		}
+	}
+
+	private byte[] lookup(final String key) {
+		synchronized (entries) {
+			final byte[] result = entries.get(key);
+			if (result != null || directory == null) {
+				return result;
+			}
+		}
+		final Path file = directory.resolve(key);
+		if (!Files.isRegularFile(file)) {
+			return null;
+		}
+		final byte[] result;
+		try {
+			result = Files.readAllBytes(file);
+		} catch (final IOException e) {
+			log.warning("Cannot read cached result " + file + ": " + e);
+			return null;
+		}
+		try {
+			// Files are evicted by modification time: mark this one as recently used
+			Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+		} catch (final IOException e) {
+			log.fine("Cannot touch cached result " + file + ": " + e);
+		}
+		remember(key, result);
+		return result;
+	}
+
+	private void store(final String key, final byte[] result) {
+		remember(key, result);
+		if (directory == null) {
+			return;
+		}
+		try {
+			Files.createDirectories(directory);
+			final Path tmp = Files.createTempFile(directory, key, ".tmp");
+			Files.write(tmp, result);
+			Files.move(tmp, directory.resolve(key), StandardCopyOption.ATOMIC_MOVE);
+		} catch (final IOException e) {
+			log.warning("Cannot store cached result in " + directory + ": " + e);
+			return;
+		}
+		synchronized (directory) {
+			diskSize += result.length;
+			if (diskSize > diskCapacity) {
+				trim();
+			}
+		}
+	}
+
+	/* Deletes the least recently used files of the directory, down to three quarters of its
+	 * capacity so that the directory isn't listed again on every store. */
+	private void trim() {
+		final List<Path> files;
+		try (final Stream<Path> list = Files.list(directory)) {
+			files = list.filter(file -> !file.getFileName().toString().endsWith(".tmp"))
+				.sorted(Comparator.comparingLong(ConversionCache::lastModified)).collect(Collectors.toList());
+		} catch (final IOException e) {
+			log.warning("Cannot list cached results in " + directory + ": " + e);
+			return;
+		}
+		diskSize = files.stream().mapToLong(ConversionCache::fileSize).sum();
+		for (final Iterator<Path> itr = files.iterator(); itr.hasNext() && diskSize > diskCapacity / 4 * 3;) {
+			final Path file = itr.next();
+			final long fileSize = fileSize(file);
+			try {
+				Files.deleteIfExists(file);
+				diskSize -= fileSize;
+			} catch (final IOException e) {
+				log.warning("Cannot evict cached result " + file + ": " + e);
+			}
+		}
+	}
+
+	private static long fileSize(final Path file) {
+		try {
+			return Files.size(file);
+		} catch (final IOException e) {
+			return 0;
+		}
+	}
+
+	private static long lastModified(final Path file) {
+		try {
+			return Files.getLastModifiedTime(file).toMillis();
+		} catch (final IOException e) {
+			return 0;
+		}
+	}
+
+	/* Keeps a result in memory, evicting the least recently used ones to make room. */
+	private void remember(final String key, final byte[] result) {
+		if (result.length > capacity) {
+			return;
+		}
+		synchronized (entries) {
+			final byte[] previous = entries.put(key, result);
+			size += result.length - (previous == null ? 0 : previous.length);
+			for (final Iterator<byte[]> itr = entries.values().iterator(); size > capacity;) {
+				size -= itr.next().length;
+				itr.remove();
+			}
+		}
+	}
+}
@@ -0,0 +1,139 @@
+/*
+ * This file is part of DraWall.
+ * DraWall is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * DraWall is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of the GNU
+ * General Public License along with DraWall. If not, see <http://www.gnu.org/licenses/>.
+ * © 2012–2014 Nathanaël Jourdane
+ * © 2014-2015 Victor Adam
+ */
+
+package cc.drawall;
+
+import java.io.BufferedReader;
+import java.io.IOError;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+/** A resident process running command lines sent by scripts/convector, so that scripted
+  * conversions don't pay for starting and warming up a JVM each time.
+  * The client connects to a port on the loopback interface and sends the daemon's token, its
+  * working directory and its arguments, one per line, followed by an empty line. The daemon
+  * answers with the messages meant for the user, then a last line holding the exit status.
+  * Any local user can connect to the port, but only the owner of the daemon can read the token,
+  * which is written to ~/.convector-PORT with owner-only permissions when the daemon starts. */
+final class Daemon implements Runnable {
+	private static final Logger log = Logger.getLogger(Daemon.class.getName());
+	static final int PORT = 3435;
+
+	/* Milliseconds a client may stay silent while sending its command line. */
+	private static final int TIMEOUT = Integer.getInteger("daemon.timeout", 10000);
+
+	private final Socket client;
+	private final byte[] token;
+
+	private Daemon(final Socket client, final byte[] token) {
+		this.client = client;
+		this.token = token;
+	}
+
+	@Override
+	public void run() {
+		try (final Socket socket = client;
+				final BufferedReader in = new BufferedReader(new InputStreamReader(
+					socket.getInputStream(), "UTF-8"));
+				final PrintStream out = new PrintStream(socket.getOutputStream(), false, "UTF-8")) {
+			socket.setSoTimeout(TIMEOUT);
+			final String secret = in.readLine();
+			if (secret == null || !MessageDigest.isEqual(token, secret.getBytes(StandardCharsets.UTF_8))) {
+				log.warning("Rejected a client without the daemon token");
+				out.println(1);
+				return;
+			}
+			final String cwd = in.readLine();
+			final List<String> args = new ArrayList<>();
+			for (String line = in.readLine(); line != null && !line.isEmpty(); line = in.readLine()) {
+				args.add(line);
+			}
+			if (cwd == null || args.stream().anyMatch(arg -> arg.startsWith("--daemon"))) {
+				out.println(1);
+				return;
+			}
+			// The command line is complete: conversions may take as long as they need
+			socket.setSoTimeout(0);
+			log.info("Running " + args + " in " + cwd);
+			int status;
+			try {
+				final int failed = ConVector.run(args, out, FileSystems.getDefault().getPath(cwd));
+				if (failed > 0) {
+					out.println(failed + " conversion(s) failed, see the daemon log for details");
+				}
+				status = failed > 0 ? 1 : 0;
+			} catch (final RuntimeException | IOError e) {
+				out.println(e);
+				status = 1;
+			}
+			out.println(status);
+		} catch (final IOException e) {
+			log.warning("Lost client: " + e);
+		}
+	}
+
+	/** Serves command lines on the specified port of the loopback interface until killed. */
+	static void loop(final int port) {
+		final ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		try (final ServerSocket serv = new ServerSocket()) {
+			serv.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+			final byte[] token = writeToken(port);
+			log.info("Daemon listening on port " + port);
+			for (;;) {
+				pool.execute(new Daemon(serv.accept(), token));
+			}
+		} catch (final IOException e) {
+			throw new IOError(e);
+		}
+	}
+
+	/* Writes a new random token to a file only readable by the current user, and returns it. */
+	private static byte[] writeToken(final int port) throws IOException {
+		final byte[] random = new byte[16];
+		new SecureRandom().nextBytes(random);
+		final StringBuilder hex = new StringBuilder();
+		for (final byte b: random) {
+			hex.append(String.format("%02x", b));
+		}
+		final byte[] token = hex.toString().getBytes(StandardCharsets.UTF_8);
+		final Path file = Paths.get(System.getProperty("user.home"), ".convector-" + port);
+		// Never reuse an existing file, whose permissions could be wider than ours
+		Files.deleteIfExists(file);
+		if (file.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+			Files.createFile(file, PosixFilePermissions.asFileAttribute(
+				PosixFilePermissions.fromString("rw-------")));
+		} else {
+			Files.createFile(file);
+		}
+		Files.write(file, token);
+		return token;
+	}
+}
@@ -13,33 +13,81 @@
 
 package cc.drawall;
 
+import java.awt.Rectangle;
 import java.awt.Shape;
+import java.awt.geom.AffineTransform;
 import java.awt.geom.Area;
+import java.awt.geom.FlatteningPathIterator;
 import java.awt.geom.Path2D;
 import java.awt.geom.PathIterator;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.io.IOError;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.logging.Logger;
 
 import javafx.scene.paint.Color;
 
 /** An in-memory representation of a vector image.
   * A Drawing is an ordered list of colored areas. Those areas are rendered
-  * so that the latter ones can hide the first ones by drawing over them. */
-public class Drawing implements Output {
+  * so that the latter ones can hide the first ones by drawing over them.
+  * The segments of all splashes are stored in a single arena of primitive arrays;
+  * Shapes are only built when merging or optimizing actually needs geometry.
+  * Once the arena exceeds its heap budget, its segments are spilled to temporary files,
+  * which are memory-mapped and streamed back when the splashes are merged, optimized or replayed.
+  * Per-splash offsets and colors always stay on the heap.
+  * The temporary files are deleted when the Drawing is closed, which must be done even if
+  * the conversion fails. */
+public class Drawing implements Output, AutoCloseable {
 	private static final Logger log = Logger.getLogger(Drawing.class.getName());
 
 	/* Buffer used for temporary storage of coordinates. */
 	private final double[] coords = new double[6];
 
-	/* The splashes composing this Drawing. */
-	private List<Splash> splashes = new ArrayList<>();
+	/* Elements per memory-mapped chunk of spilled types or points. */
+	private static final int CHUNK_BITS = 28;
+
+	/* Segment types and coordinates of all splashes, back to back.
+	 * The arrays only hold what comes after the spilled segments. */
+	private byte[] types = new byte[1024];
+	private float[] points = new float[4096];
+	private int numTypes;
+	private int numPoints;
+
+	/* Spilled segment types and coordinates, once the heap budget has been exceeded. */
+	private long budget = Long.MAX_VALUE;
+	private FileChannel typeFile;
+	private FileChannel pointFile;
+	private final ByteBuffer spillBuffer = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.nativeOrder());
+	private long spilledTypes;
+	private long spilledPoints;
+	private ByteBuffer[] typeChunks;
+	private FloatBuffer[] pointChunks;
+
+	/* Per-splash index of the first segment and first coordinate, and RGB color. */
+	private long[] typeOffsets = new long[64];
+	private long[] pointOffsets = new long[64];
+	private double[] colors = new double[3 * 64];
+	private int numSplashes;
 
 	private final Output delegate;
-	private Path2D path;
 	private final boolean merge;
 	private final boolean optimize;
+	private int tiles = 1;
 
 	public Drawing(final Output delegate, final boolean merge, final boolean optimize) {
 		this.delegate = delegate;
@@ -47,54 +95,179 @@ public class Drawing implements Output {
 		this.optimize = optimize;
 	}
 
+	/** Sets the number of rows and columns of tiles used to merge layers in parallel.
+	  * Splashes in different tiles never interact, so each tile is merged independently
+	  * on the common ForkJoinPool.
+	  * @param tiles the number of tiles per side; 1 merges the whole drawing at once
+	  * @return this Drawing */
+	public Drawing setTiles(final int tiles) {
+		this.tiles = Math.max(1, tiles);
+		return this;
+	}
+
+	/** Sets the heap budget for segment storage. Beyond it, segments are spilled to
+	  * temporary files, so that drawings larger than the heap can still be converted.
+	  * @param bytes the number of bytes of segment data to keep on the heap, or 0 for no limit
+	  * @return this Drawing */
+	public Drawing setBudget(final long bytes) {
+		this.budget = bytes > 0 ? Math.max(bytes, 1024) : Long.MAX_VALUE;
+		return this;
+	}
+
 	/* Changes the list of areas so that they can be rendered correctly in any order.
-	 * This implies removing from the lower splashes parts that would be hidden by higher splashes. */
-	private void mergeLayers() {
-		log.info("Merging " + splashes.size() + " layers");
-		final List<Splash> newSplashes = new ArrayList<>();
+	 * This implies removing from the lower splashes parts that would be hidden by higher splashes.
+	 * A grid of cached bounding boxes limits the checks to splashes that may overlap. */
+	private static List<Splash> mergeLayers(final List<Splash> splashes) {
+		Rectangle2D extent = null;
+		for (final Splash splash: splashes) {
+			splash.bounds = splash.shape.getBounds2D();
+			extent = extent == null ? splash.bounds : extent.createUnion(splash.bounds);
+		}
+		if (extent == null) {
+			return splashes;
+		}
+		final Grid<Splash> grid = new Grid<>(extent, splashes.size());
+		final NavigableSet<Splash> candidates = new TreeSet<>(Comparator.comparingInt(s -> s.order));
 		for (final Splash top: splashes) {
-			for (final Iterator<Splash> itr = newSplashes.iterator(); itr.hasNext();) {
-				final Splash bottom = itr.next();
-				if (!bottom.shape.intersects(top.shape.getBounds2D())) {
+			grid.query(top.bounds, candidates);
+			for (Splash bottom = candidates.isEmpty() ? null : candidates.first(); bottom != null;
+					bottom = candidates.higher(bottom)) {
+				if (!bottom.bounds.intersects(top.bounds) || !bottom.shape.intersects(top.bounds)) {
 					continue;
 				}
 				final Area aTop = top.shape instanceof Area ? (Area) top.shape : new Area(top.shape);
 				final Area aBot = bottom.shape instanceof Area ? (Area) bottom.shape : new Area(bottom.shape);
 				bottom.shape = aBot;
+				grid.remove(bottom, bottom.bounds);
 				if (top.color.equals(bottom.color)) {
 					aTop.add(aBot);
 					top.shape = aTop;
-					itr.remove();
+					top.bounds = aTop.getBounds2D();
+					bottom.shape = null;
+					// The grown splash may now overlap further splashes
+					grid.query(top.bounds, candidates);
 				} else {
 					aBot.subtract(aTop);
 					if (aBot.isEmpty()) {
-						itr.remove();
+						bottom.shape = null;
+					} else {
+						bottom.bounds = aBot.getBounds2D();
+						grid.add(bottom, bottom.bounds);
 					}
 				}
 			}
-			newSplashes.add(top);
+			candidates.clear();
+			grid.add(top, top.bounds);
 		}
-		splashes = newSplashes;
+		final List<Splash> newSplashes = new ArrayList<>();
+		for (final Splash splash: splashes) {
+			if (splash.shape != null) {
+				newSplashes.add(splash);
+			}
+		}
+		return newSplashes;
 	}
 
-	/* Changes the order of shapes so as to reduce the total distance moved. */
-	void optimize() {
-		log.info("Optimizing " + splashes.size() + " layers");
-		final int numSplashes = splashes.size();
-		for (int i = 1; i < numSplashes; i++) {
-			double min = Double.POSITIVE_INFINITY;
-			int best = -1;
-			for (int j = i; j < numSplashes; j++) {
-				final double dist = getDistance(splashes.get(i - 1).shape, splashes.get(j).shape);
-				best = dist < min ? j : best;
-				min = dist < min ? dist : min;
+	/* Merges layers separately on each tile, then stitches the pieces back in paint order.
+	 * Splashes straddling a tile border are clipped to each of the tiles they overlap.
+	 * Every other splash belongs to the tile holding its top-left corner, tiles being
+	 * half-open: one lying on a border, even a degenerate one, is passed to a single tile. */
+	private List<Splash> mergeTiles(final List<Splash> splashes) {
+		Rectangle2D extent = null;
+		for (final Splash splash: splashes) {
+			splash.bounds = splash.shape.getBounds2D();
+			extent = extent == null ? splash.bounds : extent.createUnion(splash.bounds);
+		}
+		if (extent == null) {
+			return splashes;
+		}
+		final List<Rectangle2D> tileRects = new ArrayList<>(tiles * tiles);
+		final double width = extent.getWidth() / tiles, height = extent.getHeight() / tiles;
+		for (int y = 0; y < tiles; y++) {
+			for (int x = 0; x < tiles; x++) {
+				// The last row and column extend to the border, whatever the rounding
+				final double minX = extent.getMinX() + x * width, minY = extent.getMinY() + y * height;
+				tileRects.add(new Rectangle2D.Double(minX, minY,
+					x + 1 == tiles ? extent.getMaxX() - minX : width,
+					y + 1 == tiles ? extent.getMaxY() - minY : height));
 			}
-			if (best != i) {
-				final Splash save = splashes.get(best);
-				splashes.set(best, splashes.get(i));
-				splashes.set(i, save);
+		}
+		final int[] owners = new int[numSplashes];
+		for (final Splash splash: splashes) {
+			owners[splash.order] = tileIndex(splash.bounds.getMinY(), extent.getMinY(), height) * tiles
+				+ tileIndex(splash.bounds.getMinX(), extent.getMinX(), width);
+		}
+		final List<List<Splash>> merged = IntStream.range(0, tileRects.size()).parallel()
+			.mapToObj(i -> mergeLayers(clip(splashes, tileRects.get(i), i, owners))).collect(Collectors.toList());
+
+		// Pieces of a same splash are disjoint, so they can be appended without an Area union
+		final Splash[] stitched = new Splash[numSplashes];
+		for (final List<Splash> pieces: merged) {
+			for (final Splash piece: pieces) {
+				if (stitched[piece.order] == null) {
+					stitched[piece.order] = new Splash(piece.order, piece.color, new Path2D.Float(piece.shape));
+				} else {
+					((Path2D) stitched[piece.order].shape).append(piece.shape, false);
+				}
+			}
+		}
+		final List<Splash> result = new ArrayList<>();
+		for (final Splash splash: stitched) {
+			if (splash != null) {
+				result.add(splash);
 			}
 		}
+		return result;
+	}
+
+	/* Returns the row or column of the tile whose half-open span holds the specified coordinate,
+	 * computing tile borders exactly as mergeTiles does. */
+	private int tileIndex(final double coordinate, final double min, final double size) {
+		int index = 0;
+		while (index + 1 < tiles && min + (index + 1) * size <= coordinate) {
+			index++;
+		}
+		return index;
+	}
+
+	/* Returns the parts of the specified splashes that lie within a tile, in the same order.
+	 * Splashes owned by the tile are kept whole if they fit in it, or if they have no area
+	 * to clip; other splashes only contribute the parts that overlap the tile. */
+	private static List<Splash> clip(final List<Splash> splashes, final Rectangle2D tile, final int index,
+			final int[] owners) {
+		final List<Splash> result = new ArrayList<>();
+		for (final Splash splash: splashes) {
+			final Rectangle2D bounds = splash.bounds;
+			if (owners[splash.order] == index && (bounds.getWidth() <= 0 || bounds.getHeight() <= 0
+					|| bounds.getMaxX() <= tile.getMaxX() && bounds.getMaxY() <= tile.getMaxY())) {
+				result.add(new Splash(splash.order, splash.color, splash.shape));
+			} else if (tile.intersects(bounds)) {
+				final Area piece = new Area(splash.shape);
+				piece.intersect(new Area(tile));
+				if (!piece.isEmpty()) {
+					result.add(new Splash(splash.order, splash.color, piece));
+				}
+			}
+		}
+		return result;
+	}
+
+	/* Changes the order and direction of shapes so as to reduce the total distance moved. */
+	private static void optimize(final List<Splash> splashes) {
+		log.info("Optimizing " + splashes.size() + " layers");
+		final List<Shape> shapes = new ArrayList<>(splashes.size());
+		for (final Splash splash: splashes) {
+			shapes.add(splash.shape);
+		}
+		final TravelOptimizer tour = new TravelOptimizer(shapes).run();
+		final List<Splash> original = new ArrayList<>(splashes);
+		for (int i = 0; i < tour.order.length; i++) {
+			final Splash splash = original.get(tour.order[i]);
+			if (tour.reversed[i]) {
+				splash.shape = TravelOptimizer.reverse(splash.shape);
+			}
+			splashes.set(i, splash);
+		}
 	}
 
 	@Override
@@ -102,65 +275,356 @@ public class Drawing implements Output {
 		delegate.setSize(width, height);
 	}
 
+	/** Merging needs areas: an open centerline would make an empty Area and vanish, so strokes
+	  * are painted as outlines whenever layers are merged. */
+	@Override
+	public boolean centerline() {
+		return !merge && delegate.centerline();
+	}
+
 	@Override
 	public void writeColor(final double red, final double green, final double blue) {
-		path = new Path2D.Float();
-		splashes.add(new Splash(Color.color(red, green, blue), path));
+		if (numSplashes == typeOffsets.length) {
+			typeOffsets = Arrays.copyOf(typeOffsets, 2 * numSplashes);
+			pointOffsets = Arrays.copyOf(pointOffsets, 2 * numSplashes);
+			colors = Arrays.copyOf(colors, 6 * numSplashes);
+		}
+		typeOffsets[numSplashes] = spilledTypes + numTypes;
+		pointOffsets[numSplashes] = spilledPoints + numPoints;
+		colors[3 * numSplashes] = red;
+		colors[3 * numSplashes + 1] = green;
+		colors[3 * numSplashes + 2] = blue;
+		numSplashes++;
 	}
 
 	@Override
 	public void writeSegment(final int type, final double... coords) {
-		switch (type) {
-		case 0:
-			path.moveTo(coords[0], coords[1]);
-			break;
-		case 1:
-			path.lineTo(coords[0], coords[1]);
-			break;
-		case 2:
-			path.quadTo(coords[0], coords[1], coords[2], coords[3]);
-			break;
-		case 3:
-			path.curveTo(coords[0], coords[1], coords[2], coords[3], coords[4], coords[5]);
-			break;
-		case 4:
-			path.closePath();
-			break;
-		default:
-			assert false;
+		append(type, coords, 0);
+	}
+
+	@Override
+	public void writeSegments(final byte[] types, final double[] coords, final int count) {
+		for (int i = 0, j = 0; i < count; i++) {
+			append(types[i], coords, j);
+			j += Output.coordinates(types[i]);
 		}
 	}
 
+	/** Appends the segments of the shape straight to the arena, without the scratch buffer. */
 	@Override
-	public void writeFooter() {
-		if (merge) {
-			mergeLayers();
+	public void paint(final Color color, final Shape shape, final Segments scratch) {
+		writeColor(color.getRed(), color.getGreen(), color.getBlue());
+		for (final PathIterator itr = shape.getPathIterator(null); !itr.isDone(); itr.next()) {
+			append(itr.currentSegment(coords), coords, 0);
+		}
+	}
+
+	/* Appends a segment whose coordinates start at the specified offset to the arena. */
+	private void append(final int type, final double[] coords, final int offset) {
+		assert type >= PathIterator.SEG_MOVETO && type <= PathIterator.SEG_CLOSE : "Invalid segment type: " + type;
+		if (numSplashes == 0) {
+			// Segments written before any color are painted in black
+			writeColor(0, 0, 0);
 		}
-		if (optimize) {
-			optimize();
+		final int size = Output.coordinates(type);
+		if (numTypes + 4L * (numPoints + size) > budget) {
+			spill();
 		}
-		for (final Splash splash: splashes) {
-			delegate.paint(splash.color, splash.shape);
+		if (numTypes == types.length) {
+			types = Arrays.copyOf(types, 2 * numTypes);
+		}
+		if (numPoints + size > points.length) {
+			points = Arrays.copyOf(points, 2 * points.length);
+		}
+		types[numTypes++] = (byte) type;
+		for (int i = 0; i < size; i++) {
+			points[numPoints++] = (float) coords[offset + i];
+		}
+	}
+
+	/* Appends the segments held on the heap to the temporary files, then empties the arena. */
+	private void spill() {
+		try {
+			if (typeFile == null) {
+				log.info("Heap budget exceeded, spilling segments to disk");
+				typeFile = tempFile();
+				pointFile = tempFile();
+			}
+			for (final ByteBuffer buf = ByteBuffer.wrap(types, 0, numTypes); buf.hasRemaining();) {
+				typeFile.write(buf);
+			}
+			final FloatBuffer floats = spillBuffer.asFloatBuffer();
+			for (int i = 0; i < numPoints; i += floats.capacity()) {
+				final int count = Math.min(floats.capacity(), numPoints - i);
+				floats.clear();
+				floats.put(points, i, count);
+				spillBuffer.clear().limit(4 * count);
+				while (spillBuffer.hasRemaining()) {
+					pointFile.write(spillBuffer);
+				}
+			}
+		} catch (final IOException e) {
+			throw new IOError(e);
+		}
+		spilledTypes += numTypes;
+		spilledPoints += numPoints;
+		numTypes = 0;
+		numPoints = 0;
+	}
+
+	private static FileChannel tempFile() throws IOException {
+		return FileChannel.open(Files.createTempFile("drawall", ".spill"), StandardOpenOption.READ,
+			StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+	}
+
+	/* Maps the spilled segments in memory, in chunks small enough for a ByteBuffer. */
+	private void mapSpill() throws IOException {
+		final long chunk = 1L << CHUNK_BITS;
+		typeChunks = new ByteBuffer[(int) ((spilledTypes + chunk - 1) >> CHUNK_BITS)];
+		for (int i = 0; i < typeChunks.length; i++) {
+			typeChunks[i] = typeFile.map(FileChannel.MapMode.READ_ONLY, i * chunk,
+				Math.min(chunk, spilledTypes - i * chunk));
+		}
+		pointChunks = new FloatBuffer[(int) ((spilledPoints + chunk - 1) >> CHUNK_BITS)];
+		for (int i = 0; i < pointChunks.length; i++) {
+			pointChunks[i] = pointFile.map(FileChannel.MapMode.READ_ONLY, 4 * i * chunk,
+				4 * Math.min(chunk, spilledPoints - i * chunk)).order(ByteOrder.nativeOrder()).asFloatBuffer();
+		}
+	}
+
+	/* Returns the type of the segment at the specified index, wherever it is stored. */
+	private int type(final long index) {
+		return index >= spilledTypes ? types[(int) (index - spilledTypes)]
+			: typeChunks[(int) (index >> CHUNK_BITS)].get((int) index & ((1 << CHUNK_BITS) - 1));
+	}
+
+	/* Returns the coordinate at the specified index, wherever it is stored. */
+	private float point(final long index) {
+		return index >= spilledPoints ? points[(int) (index - spilledPoints)]
+			: pointChunks[(int) (index >> CHUNK_BITS)].get((int) index & ((1 << CHUNK_BITS) - 1));
+	}
+
+	@Override
+	public void writeFooter() {
+		if (typeFile != null) {
+			try {
+				mapSpill();
+			} catch (final IOException e) {
+				throw new IOError(e);
+			}
+			// Mappings outlive their channel, and closing it deletes the files right away
+			close();
+		}
+		final long totalTypes = spilledTypes + numTypes;
+		if (merge || optimize) {
+			List<Splash> splashes = new ArrayList<>(numSplashes);
+			for (int i = 0; i < numSplashes; i++) {
+				if (i + 1 < numSplashes ? typeOffsets[i + 1] == typeOffsets[i] : totalTypes == typeOffsets[i]) {
+					continue; // Empty splashes have no geometry to merge or reorder
+				}
+				splashes.add(new Splash(i, Color.color(colors[3 * i], colors[3 * i + 1],
+					colors[3 * i + 2]), new SplashShape(i)));
+			}
+			if (merge) {
+				log.info("Merging " + splashes.size() + " layers");
+				final long start = System.nanoTime();
+				splashes = tiles > 1 ? mergeTiles(splashes) : mergeLayers(splashes);
+				Metrics.merging.record(System.nanoTime() - start);
+			}
+			if (optimize) {
+				final long start = System.nanoTime();
+				optimize(splashes);
+				Metrics.optimizing.record(System.nanoTime() - start);
+			}
+			final Segments scratch = new Segments();
+			for (final Splash splash: splashes) {
+				delegate.paint(splash.color, splash.shape, scratch);
+			}
+		} else {
+			replay(totalTypes);
 		}
 		delegate.writeFooter();
 	}
 
+	/** Closes and deletes the temporary files holding spilled segments, if any.
+	  * Segments already mapped in memory remain readable. */
+	@Override
+	public void close() {
+		try {
+			try {
+				if (typeFile != null) {
+					typeFile.close();
+				}
+			} finally {
+				// Closed even if closing the other one failed
+				if (pointFile != null) {
+					pointFile.close();
+				}
+			}
+		} catch (final IOException e) {
+			throw new IOError(e);
+		} finally {
+			typeFile = null;
+			pointFile = null;
+		}
+	}
+
+	/* Sends the splashes to the delegate in their original order, straight from the arena. */
+	private void replay(final long totalTypes) {
+		byte[] splashTypes = new byte[64];
+		double[] splashCoords = new double[6 * 64];
+		long point = 0;
+		for (int i = 0; i < numSplashes; i++) {
+			delegate.writeColor(colors[3 * i], colors[3 * i + 1], colors[3 * i + 2]);
+			final int count = (int) ((i + 1 < numSplashes ? typeOffsets[i + 1] : totalTypes) - typeOffsets[i]);
+			if (count > splashTypes.length) {
+				splashTypes = new byte[2 * count];
+				splashCoords = new double[12 * count];
+			}
+			int numCoords = 0;
+			for (int seg = 0; seg < count; seg++) {
+				final int type = type(typeOffsets[i] + seg);
+				splashTypes[seg] = (byte) type;
+				for (int j = 0; j < Output.coordinates(type); j++) {
+					splashCoords[numCoords++] = point(point++);
+				}
+			}
+			delegate.writeSegments(splashTypes, splashCoords, count);
+		}
+	}
+
 	private static class Splash {
+		final int order;
 		final Color color;
+		/* Null once this splash has been merged into another or entirely hidden. */
 		Shape shape;
-		Splash(final Color color, final Shape shape) {
+		/* Cached bounds of the shape, kept up to date while merging. */
+		Rectangle2D bounds;
+		Splash(final int order, final Color color, final Shape shape) {
+			this.order = order;
 			this.color = color;
 			this.shape = shape;
 		}
 	}
 
-	/* Returns the distance between the first points of two Shapes. */
-	private double getDistance(final Shape a, final Shape b) {
-		a.getPathIterator(null).currentSegment(coords);
-		final double ax = coords[0], ay = coords[1];
-		b.getPathIterator(null).currentSegment(coords);
-		final double bx = coords[0], by = coords[1];
-		return (bx - ax) * (bx - ax) + (by - ay) * (by - ay);
+	/* A read-only Shape view of the segments of a single splash in the arena. */
+	private final class SplashShape implements Shape {
+		private final long firstType;
+		private final long lastType;
+		private final long firstPoint;
+		private final long lastPoint;
+
+		SplashShape(final int splash) {
+			final boolean last = splash + 1 == numSplashes;
+			firstType = typeOffsets[splash];
+			lastType = last ? spilledTypes + numTypes : typeOffsets[splash + 1];
+			firstPoint = pointOffsets[splash];
+			lastPoint = last ? spilledPoints + numPoints : pointOffsets[splash + 1];
+		}
+
+		@Override
+		public Rectangle getBounds() {
+			return getBounds2D().getBounds();
+		}
+
+		@Override
+		public Rectangle2D getBounds2D() {
+			if (firstPoint == lastPoint) {
+				return new Rectangle2D.Float();
+			}
+			float minX = point(firstPoint), minY = point(firstPoint + 1);
+			float maxX = minX, maxY = minY;
+			for (long i = firstPoint + 2; i < lastPoint; i += 2) {
+				final float x = point(i), y = point(i + 1);
+				minX = Math.min(minX, x);
+				maxX = Math.max(maxX, x);
+				minY = Math.min(minY, y);
+				maxY = Math.max(maxY, y);
+			}
+			return new Rectangle2D.Float(minX, minY, maxX - minX, maxY - minY);
+		}
+
+		@Override
+		public boolean contains(final double x, final double y) {
+			return Path2D.contains(getPathIterator(null), x, y);
+		}
+
+		@Override
+		public boolean contains(final Point2D p) {
+			return Path2D.contains(getPathIterator(null), p);
+		}
+
+		@Override
+		public boolean contains(final double x, final double y, final double w, final double h) {
+			return Path2D.contains(getPathIterator(null), x, y, w, h);
+		}
+
+		@Override
+		public boolean contains(final Rectangle2D r) {
+			return Path2D.contains(getPathIterator(null), r);
+		}
+
+		@Override
+		public boolean intersects(final double x, final double y, final double w, final double h) {
+			return Path2D.intersects(getPathIterator(null), x, y, w, h);
+		}
+
+		@Override
+		public boolean intersects(final Rectangle2D r) {
+			return Path2D.intersects(getPathIterator(null), r);
+		}
+
+		@Override
+		public PathIterator getPathIterator(final AffineTransform at) {
+			return new PathIterator() {
+				private long type = firstType;
+				private long point = firstPoint;
+
+				@Override
+				public int getWindingRule() {
+					return WIND_NON_ZERO;
+				}
+
+				@Override
+				public boolean isDone() {
+					return type >= lastType;
+				}
+
+				@Override
+				public void next() {
+					point += Output.coordinates(type(type++));
+				}
+
+				@Override
+				public int currentSegment(final float[] coords) {
+					final int segType = type(type);
+					for (int i = 0; i < Output.coordinates(segType); i++) {
+						coords[i] = point(point + i);
+					}
+					if (at != null) {
+						at.transform(coords, 0, coords, 0, Output.coordinates(segType) / 2);
+					}
+					return segType;
+				}
+
+				@Override
+				public int currentSegment(final double[] coords) {
+					final int segType = type(type);
+					for (int i = 0; i < Output.coordinates(segType); i++) {
+						coords[i] = point(point + i);
+					}
+					if (at != null) {
+						at.transform(coords, 0, coords, 0, Output.coordinates(segType) / 2);
+					}
+					return segType;
+				}
+			};
+		}
+
+		@Override
+		public PathIterator getPathIterator(final AffineTransform at, final double flatness) {
+			return new FlatteningPathIterator(getPathIterator(at), flatness);
+		}
 	}
 
 	/* Returns the surface of the specified area. */
@@ -25,17 +25,95 @@ public abstract class Exporter {
 	protected static final String COMMENT = "generated by ConVector - http://convector.drawall.cc";
 
 	protected final ByteBuffer empty = ByteBuffer.allocate(0);
-	protected final ByteBuffer buffer = ByteBuffer.allocateDirect(64);
+	protected final ByteBuffer buffer = ByteBuffer.allocateDirect(128);
+	private ByteBuffer bulk = ByteBuffer.allocateDirect(4096);
+	private final double[] segment = new double[6];
 	protected int bytes;
-	private final String[] format;
-	double ratio;
+	protected double ratio;
+
+	/* For each segment type, the literal parts of its format string around the coordinates. */
+	private final byte[][][] templates;
+
+	/* Powers of ten used for fixed-point formatting. */
+	private static final long[] POWERS = {1, 10, 100, 1000, 10000, 100000, 1000000};
+
+	private static final byte[] HEX_DIGITS = ascii("0123456789abcdef");
 
 	/** Constructs an exporter with the specified flags and segement formatting strings.
 	  * @param flags a bit mask, constructed by OR-ing together the flags that apply.
 	  * @param format a list of format strings for the different segment types:
 	  * moveTo, lineTo, quadTo, curveTo and closePath. */
 	protected Exporter(final String... format) {
-		this.format = format;
+		templates = new byte[format.length][][];
+		for (int i = 0; i < format.length; i++) {
+			final String[] parts = (format[i] + '\n').split("%", -1);
+			templates[i] = new byte[parts.length][];
+			for (int j = 0; j < parts.length; j++) {
+				templates[i][j] = ascii(parts[j]);
+			}
+		}
+	}
+
+	/** Returns the ASCII encoding of the specified string, for use with the put methods. */
+	protected static byte[] ascii(final String string) {
+		return string.getBytes(ASCII);
+	}
+
+	/** Appends the decimal representation of an integer to the specified buffer,
+	  * without allocating anything. */
+	protected static ByteBuffer putInt(final ByteBuffer buf, final long value) {
+		// Work on the negated value, which can represent Long.MIN_VALUE
+		long rest = value < 0 ? value : -value;
+		if (value < 0) {
+			buf.put((byte) '-');
+		}
+		int digits = 1;
+		for (long pow = -10; pow >= rest && digits < 19; pow *= 10) {
+			digits++;
+		}
+		final int start = buf.position();
+		for (int i = start + digits - 1; i >= start; i--) {
+			buf.put(i, (byte) ('0' - rest % 10));
+			rest /= 10;
+		}
+		buf.position(start + digits);
+		return buf;
+	}
+
+	/** Appends a number with a fixed number of decimals to the specified buffer, the way
+	  * `%.Nf` would, without allocating anything.
+	  * @param decimals the number of digits after the decimal point, at most 6 */
+	protected static ByteBuffer putFixed(final ByteBuffer buf, final double value, final int decimals) {
+		if (value < 0) {
+			buf.put((byte) '-');
+		}
+		final long scaled = Math.round(Math.abs(value) * POWERS[decimals]);
+		putInt(buf, scaled / POWERS[decimals]);
+		if (decimals > 0) {
+			buf.put((byte) '.');
+			final int start = buf.position();
+			long fraction = scaled % POWERS[decimals];
+			for (int i = start + decimals - 1; i >= start; i--) {
+				buf.put(i, (byte) ('0' + fraction % 10));
+				fraction /= 10;
+			}
+			buf.position(start + decimals);
+		}
+		return buf;
+	}
+
+	/** Appends a color component between 0 and 1 as two lowercase hexadecimal digits,
+	  * the way `%02x` would with the component scaled to 255. */
+	protected static ByteBuffer putHex(final ByteBuffer buf, final double component) {
+		final int value = (int) (component * 255);
+		return buf.put(HEX_DIGITS[(value >> 4) & 0xF]).put(HEX_DIGITS[value & 0xF]);
+	}
+
+	/** Flips a buffer filled with the put methods and counts its content as written. */
+	protected ByteBuffer written(final ByteBuffer buf) {
+		buf.flip();
+		bytes += buf.limit();
+		return buf;
 	}
 
 	/** A convenience method to write a formatted string to the output stream
@@ -58,6 +136,26 @@ public abstract class Exporter {
 		return empty;
 	}
 
+	/** Whether stroked paths should be exported as centerlines by default.
+	  * Pen plotters draw lines with their own pen, and would otherwise trace both sides of
+	  * every line; their exporters should override this to return true. */
+	protected boolean centerline() {
+		return false;
+	}
+
+	/** Whether the target filetype fills the paths it is given, rather than tracing them.
+	  * Open stroke centerlines would come out as filled slivers, or not at all, so they are
+	  * refused for such filetypes. */
+	protected boolean fills() {
+		return true;
+	}
+
+	/** Whether the target filetype can represent quadratic and cubic curves.
+	  * Exporters returning false only get lines: curves are flattened before reaching them. */
+	protected boolean curves() {
+		return true;
+	}
+
 	/** Writes the necessary instructions to change the Color of the drawing.
 	  * By default, this does nothing; subclasses should override this if the
 	  * target filetype supports color.
@@ -69,19 +167,37 @@ public abstract class Exporter {
 
 	/** Writes a single segment to the output stream.
 	  * By default, this formats the coordinates using one of the format strings
-	  * passed to the constructor. */
+	  * passed to the constructor, precompiled into literal parts. */
 	protected ByteBuffer segment(final int type, final double[] coords) {
-		int i = 0;
+		final byte[][] template = templates[type];
 		buffer.clear();
-		for (final char chr: format[type].toCharArray()) {
-			if (chr == '%') {
-				buffer.put(Integer.toString((int) (coords[i++] / ratio)).getBytes(ASCII));
-			} else {
-				buffer.put((byte) chr);
+		buffer.put(template[0]);
+		for (int i = 1; i < template.length; i++) {
+			putInt(buffer, (int) (coords[i - 1] / ratio));
+			buffer.put(template[i]);
+		}
+		return written(buffer);
+	}
+
+	/** Writes several segments to the output stream at once.
+	  * By default, this concatenates the results of `segment` for each of them.
+	  * @param types the types of the segments
+	  * @param coords the coordinates of the segments, packed back to back
+	  * @param count the number of segments */
+	protected ByteBuffer segments(final byte[] types, final double[] coords, final int count) {
+		bulk.clear();
+		for (int i = 0, j = 0; i < count; i++) {
+			final int size = Output.coordinates(types[i]);
+			System.arraycopy(coords, j, segment, 0, size);
+			j += size;
+			final ByteBuffer result = segment(types[i], segment);
+			if (result.remaining() > bulk.remaining()) {
+				bulk.flip();
+				bulk = ByteBuffer.allocateDirect(2 * (bulk.capacity() + result.remaining())).put(bulk);
 			}
+			bulk.put(result);
 		}
-		buffer.put((byte) '\n').flip();
-		bytes += buffer.limit();
-		return buffer;
+		bulk.flip();
+		return bulk;
 	}
 }
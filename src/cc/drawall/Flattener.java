@@ -0,0 +1,166 @@
+/*
+ * This file is part of DraWall.
+ * DraWall is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * DraWall is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of the GNU
+ * General Public License along with DraWall. If not, see <http://www.gnu.org/licenses/>.
+ * © 2012–2014 Nathanaël Jourdane
+ * © 2014-2015 Victor Adam
+ */
+
+package cc.drawall;
+
+import java.awt.geom.CubicCurve2D;
+import java.awt.geom.PathIterator;
+import java.awt.geom.QuadCurve2D;
+import java.util.Arrays;
+
+/** An Output approximating curves with straight lines, for outputs that can't draw curves.
+  * Curves are split in halves until each piece is within the tolerance of the line joining
+  * its ends, so that only the parts of a curve that bend much get many lines.
+  * The tolerance is given in output units, i.e. in the integer coordinates written by
+  * exporters. */
+public class Flattener implements Output {
+	/** Default tolerance, in output units. */
+	public static final double DEFAULT_TOLERANCE = 1;
+
+	/* Beyond this depth, curves are not split any further (2^16 lines per curve at most). */
+	private static final int MAX_DEPTH = 16;
+	/* Number of coordinates of the curves in the subdivision stack, whatever their order. */
+	private static final int STRIDE = 8;
+
+	private final Output delegate;
+	private final double tolerance;
+	/* 16 times the square of the tolerance in input units, known once the size is set. */
+	private double limit;
+
+	/* The curves being split, then the flattened segments, the current point and the start
+	 * of the current subpath. */
+	private final double[] curves = new double[(MAX_DEPTH + 2) * STRIDE];
+	private byte[] types = new byte[256];
+	private double[] coords = new double[512];
+	private int count;
+	private int numCoords;
+	private double x, y, startX, startY;
+
+	/** Creates a Flattener forwarding lines and flattened curves to the specified Output.
+	  * @param tolerance the maximum distance between a curve and the lines replacing it,
+	  * in output units */
+	public Flattener(final Output delegate, final double tolerance) {
+		this.delegate = delegate;
+		this.tolerance = tolerance;
+	}
+
+	@Override
+	public void setSize(final double width, final double height) {
+		final double scaled = tolerance * SimpleOutput.ratio(width, height);
+		limit = 16 * scaled * scaled;
+		delegate.setSize(width, height);
+	}
+
+	@Override
+	public void writeColor(final double red, final double green, final double blue) {
+		delegate.writeColor(red, green, blue);
+	}
+
+	@Override
+	public void writeSegment(final int type, final double... segment) {
+		writeSegments(new byte[] {(byte) type}, segment, 1);
+	}
+
+	@Override
+	public void writeSegments(final byte[] segmentTypes, final double[] segments, final int segmentCount) {
+		count = 0;
+		numCoords = 0;
+		for (int i = 0, j = 0; i < segmentCount; i++) {
+			final int type = segmentTypes[i];
+			switch (type) {
+			case PathIterator.SEG_QUADTO:
+				curves[0] = x;
+				curves[1] = y;
+				System.arraycopy(segments, j, curves, 2, 4);
+				quad(0, 0);
+				break;
+			case PathIterator.SEG_CUBICTO:
+				curves[0] = x;
+				curves[1] = y;
+				System.arraycopy(segments, j, curves, 2, 6);
+				cubic(0, 0);
+				break;
+			case PathIterator.SEG_CLOSE:
+				add(type, 0, 0);
+				break;
+			default:
+				add(type, segments[j], segments[j + 1]);
+			}
+			j += Output.coordinates(type);
+		}
+		delegate.writeSegments(types, coords, count);
+	}
+
+	@Override
+	public void writeFooter() {
+		delegate.writeFooter();
+	}
+
+	@Override
+	public boolean centerline() {
+		return delegate.centerline();
+	}
+
+	/* The distance between a quadratic curve and its chord is at most a quarter of the norm of
+	 * P0 - 2 P1 + P2. The curve to flatten is at curves[off]; its halves are put at off and
+	 * off + STRIDE, where the right half waits while the left one is flattened. */
+	private void quad(final int off, final int depth) {
+		final double ux = curves[off] - 2 * curves[off + 2] + curves[off + 4];
+		final double uy = curves[off + 1] - 2 * curves[off + 3] + curves[off + 5];
+		if (depth == MAX_DEPTH || ux * ux + uy * uy <= limit) {
+			add(PathIterator.SEG_LINETO, curves[off + 4], curves[off + 5]);
+			return;
+		}
+		QuadCurve2D.subdivide(curves, off, curves, off + STRIDE, curves, off);
+		quad(off + STRIDE, depth + 1);
+		quad(off, depth + 1);
+	}
+
+	/* The distance between a cubic curve and its chord is at most a quarter of the largest of
+	 * the norms of 3 P1 - 2 P0 - P3 and 3 P2 - P0 - 2 P3, bounded coordinate-wise. */
+	private void cubic(final int off, final int depth) {
+		final double ux = 3 * curves[off + 2] - 2 * curves[off] - curves[off + 6];
+		final double uy = 3 * curves[off + 3] - 2 * curves[off + 1] - curves[off + 7];
+		final double vx = 3 * curves[off + 4] - curves[off] - 2 * curves[off + 6];
+		final double vy = 3 * curves[off + 5] - curves[off + 1] - 2 * curves[off + 7];
+		if (depth == MAX_DEPTH || Math.max(ux * ux, vx * vx) + Math.max(uy * uy, vy * vy) <= limit) {
+			add(PathIterator.SEG_LINETO, curves[off + 6], curves[off + 7]);
+			return;
+		}
+		CubicCurve2D.subdivide(curves, off, curves, off + STRIDE, curves, off);
+		cubic(off + STRIDE, depth + 1);
+		cubic(off, depth + 1);
+	}
+
+	/* Appends a move, line or close segment to the flattened segments. */
+	private void add(final int type, final double px, final double py) {
+		if (count == types.length) {
+			types = Arrays.copyOf(types, 2 * count);
+		}
+		types[count++] = (byte) type;
+		if (type == PathIterator.SEG_CLOSE) {
+			x = startX;
+			y = startY;
+			return;
+		}
+		if (numCoords + 2 > coords.length) {
+			coords = Arrays.copyOf(coords, 2 * coords.length);
+		}
+		coords[numCoords++] = x = px;
+		coords[numCoords++] = y = py;
+		if (type == PathIterator.SEG_MOVETO) {
+			startX = px;
+			startY = py;
+		}
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * This file is part of DraWall.
+ * DraWall is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * DraWall is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of the GNU
+ * General Public License along with DraWall. If not, see <http://www.gnu.org/licenses/>.
+ * © 2012–2014 Nathanaël Jourdane
+ * © 2014-2015 Victor Adam
+ */
+
+package cc.drawall;
+
+import java.awt.Font;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
+import java.awt.font.TextAttribute;
+import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Fonts and glyph outlines, cached for the whole process since laying text out is slow.
+  * Both caches are bounded, and simply emptied when full.
+  * Font.createGlyphVector applies neither kerning nor ligatures: the outline of a string is
+  * exactly that of its glyphs, each shifted by the advances of the previous ones. */
+final class Glyphs {
+	private static final int MAX_FONTS = 32;
+	private static final int MAX_GLYPHS = 512;
+	private static final FontRenderContext FRC = new FontRenderContext(null, true, false);
+
+	private static final Map<Map<TextAttribute, Object>, Font> fonts = new ConcurrentHashMap<>();
+	private static final Map<Font, Map<Integer, Glyph>> glyphs = new ConcurrentHashMap<>();
+
+	private Glyphs() { /* Utility class */ }
+
+	/** Returns the font described by the specified attributes. */
+	static Font font(final Map<TextAttribute, Object> attributes) {
+		Font font = fonts.get(attributes);
+		if (font == null) {
+			// The attributes of a Canvas may change later on: the key has to be a copy
+			final Map<TextAttribute, Object> key = new HashMap<>(attributes);
+			font = new Font(key);
+			if (fonts.size() >= MAX_FONTS) {
+				fonts.clear();
+			}
+			fonts.putIfAbsent(key, font);
+		}
+		return font;
+	}
+
+	/** Returns the outline of the specified text, starting at the origin. */
+	static Path2D outline(final Map<TextAttribute, Object> attributes, final String text) {
+		final Font font = font(attributes);
+		if (glyphs.size() >= MAX_FONTS && !glyphs.containsKey(font)) {
+			glyphs.clear();
+		}
+		// Another thread may clear the caches at any time: only use the map we got back
+		final Map<Integer, Glyph> cache = glyphs.computeIfAbsent(font, f -> new ConcurrentHashMap<>());
+		final Path2D.Float result = new Path2D.Float();
+		final float[] coords = new float[6];
+		float x = 0;
+		for (int i = 0; i < text.length();) {
+			final int codePoint = text.codePointAt(i);
+			i += Character.charCount(codePoint);
+			Glyph glyph = cache.get(codePoint);
+			if (glyph == null) {
+				glyph = new Glyph(font.createGlyphVector(FRC, new String(Character.toChars(codePoint))));
+				if (cache.size() >= MAX_GLYPHS) {
+					cache.clear();
+				}
+				cache.put(codePoint, glyph);
+			}
+			for (final PathIterator itr = glyph.outline.getPathIterator(null); !itr.isDone(); itr.next()) {
+				switch (itr.currentSegment(coords)) {
+				case PathIterator.SEG_MOVETO:
+					result.moveTo(coords[0] + x, coords[1]);
+					break;
+				case PathIterator.SEG_LINETO:
+					result.lineTo(coords[0] + x, coords[1]);
+					break;
+				case PathIterator.SEG_QUADTO:
+					result.quadTo(coords[0] + x, coords[1], coords[2] + x, coords[3]);
+					break;
+				case PathIterator.SEG_CUBICTO:
+					result.curveTo(coords[0] + x, coords[1], coords[2] + x, coords[3], coords[4] + x, coords[5]);
+					break;
+				default:
+					result.closePath();
+				}
+			}
+			x += glyph.advance;
+		}
+		return result;
+	}
+
+	/* The outline of a single glyph at the origin, and the position of the next one. */
+	private static final class Glyph {
+		final Path2D.Float outline;
+		final float advance;
+
+		Glyph(final GlyphVector vector) {
+			outline = new Path2D.Float(vector.getOutline());
+			advance = (float) vector.getGlyphPosition(vector.getNumGlyphs()).getX();
+		}
+	}
+}
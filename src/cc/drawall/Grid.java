@@ -0,0 +1,104 @@
+/*
+ * This file is part of DraWall.
+ * DraWall is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * DraWall is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of the GNU
+ * General Public License along with DraWall. If not, see <http://www.gnu.org/licenses/>.
+ * © 2012–2014 Nathanaël Jourdane
+ * © 2014-2015 Victor Adam
+ */
+
+package cc.drawall;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/** A uniform grid of bounding boxes, used to find items whose bounds may overlap a rectangle.
+  * Items covering a large part of the grid are kept in a separate list that every query
+  * returns, so that backgrounds don’t have to be inserted in each cell. */
+final class Grid<T> {
+	private final double minX;
+	private final double minY;
+	private final double cellWidth;
+	private final double cellHeight;
+	private final int cols;
+	private final int rows;
+	private final List<List<T>> cells;
+	private final List<T> large = new ArrayList<>();
+
+	/** Constructs a grid covering the specified extent, sized for the expected number of items.
+	  * @param extent the rectangle enclosing the bounds of all items
+	  * @param count the expected number of items */
+	Grid(final Rectangle2D extent, final int count) {
+		cols = rows = Math.max(1, (int) Math.sqrt(count));
+		minX = extent.getMinX();
+		minY = extent.getMinY();
+		cellWidth = extent.getWidth() > 0 ? extent.getWidth() / cols : 1;
+		cellHeight = extent.getHeight() > 0 ? extent.getHeight() / rows : 1;
+		cells = new ArrayList<>(cols * rows);
+		for (int i = cols * rows; i > 0; i--) {
+			cells.add(new ArrayList<>(2));
+		}
+	}
+
+	void add(final T item, final Rectangle2D bounds) {
+		final int[] range = range(bounds);
+		if (isLarge(range)) {
+			large.add(item);
+			return;
+		}
+		for (int y = range[1]; y <= range[3]; y++) {
+			for (int x = range[0]; x <= range[2]; x++) {
+				cells.get(y * cols + x).add(item);
+			}
+		}
+	}
+
+	/** Removes an item. The bounds must be the ones it was added with. */
+	void remove(final T item, final Rectangle2D bounds) {
+		final int[] range = range(bounds);
+		if (isLarge(range)) {
+			large.remove(item);
+			return;
+		}
+		for (int y = range[1]; y <= range[3]; y++) {
+			for (int x = range[0]; x <= range[2]; x++) {
+				cells.get(y * cols + x).remove(item);
+			}
+		}
+	}
+
+	/** Adds to `dest` every item whose cells overlap the specified rectangle.
+	  * The result is a superset of the items whose bounds actually overlap it. */
+	void query(final Rectangle2D bounds, final Collection<T> dest) {
+		dest.addAll(large);
+		final int[] range = range(bounds);
+		for (int y = range[1]; y <= range[3]; y++) {
+			for (int x = range[0]; x <= range[2]; x++) {
+				dest.addAll(cells.get(y * cols + x));
+			}
+		}
+	}
+
+	private boolean isLarge(final int[] range) {
+		return 4 * (range[2] - range[0] + 1) * (range[3] - range[1] + 1) > cols * rows;
+	}
+
+	/* Returns the first and last column and row covered by the specified rectangle. */
+	private int[] range(final Rectangle2D bounds) {
+		return new int[] {
+			clamp((bounds.getMinX() - minX) / cellWidth, cols),
+			clamp((bounds.getMinY() - minY) / cellHeight, rows),
+			clamp((bounds.getMaxX() - minX) / cellWidth, cols),
+			clamp((bounds.getMaxY() - minY) / cellHeight, rows)};
+	}
+
+	private static int clamp(final double value, final int size) {
+		return value < 0 ? 0 : value >= size ? size - 1 : (int) value;
+	}
+}
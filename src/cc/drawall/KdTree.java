@@ -0,0 +1,157 @@
+/*
+ * This file is part of DraWall.
+ * DraWall is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * DraWall is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of the GNU
+ * General Public License along with DraWall. If not, see <http://www.gnu.org/licenses/>.
+ * © 2012–2014 Nathanaël Jourdane
+ * © 2014-2015 Victor Adam
+ */
+
+package cc.drawall;
+
+/** A static 2-d tree of points supporting nearest-neighbour queries and removals.
+  * The tree is stored implicitly: the root of each range of `tree` is its middle element.
+  * Removed points are only flagged, and subtrees whose points are all removed are skipped. */
+final class KdTree {
+	private final double[] xs;
+	private final double[] ys;
+	private final int size;
+
+	/* Point indices, in tree order. */
+	private final int[] tree;
+	/* Number of points not yet removed in the subtree rooted at each position. */
+	private final int[] alive;
+	/* Position of each point in `tree`. */
+	private final int[] position;
+	private final boolean[] removed;
+
+	/* State of the current query. */
+	private double queryX;
+	private double queryY;
+	private double bestDist;
+	private int best;
+
+	/** Builds a tree containing the points (xs[i], ys[i]).
+	  * Points are identified by their index in those arrays. */
+	KdTree(final double[] xs, final double[] ys) {
+		this.xs = xs;
+		this.ys = ys;
+		size = xs.length;
+		tree = new int[size];
+		alive = new int[size];
+		position = new int[size];
+		removed = new boolean[size];
+		for (int i = 0; i < size; i++) {
+			tree[i] = i;
+		}
+		build(0, size, xs);
+		for (int i = 0; i < size; i++) {
+			position[tree[i]] = i;
+		}
+	}
+
+	private void build(final int lo, final int hi, final double[] key) {
+		if (lo >= hi) {
+			return;
+		}
+		final int mid = (lo + hi) >>> 1;
+		select(lo, hi - 1, mid, key);
+		alive[mid] = hi - lo;
+		build(lo, mid, key == xs ? ys : xs);
+		build(mid + 1, hi, key == xs ? ys : xs);
+	}
+
+	/* Partially sorts tree[lo..hi] so that the k-th element is at its sorted position. */
+	private void select(int lo, int hi, final int k, final double[] key) {
+		while (lo < hi) {
+			final double pivot = key[tree[(lo + hi) >>> 1]];
+			int i = lo, j = hi;
+			while (i <= j) {
+				while (key[tree[i]] < pivot) {
+					i++;
+				}
+				while (key[tree[j]] > pivot) {
+					j--;
+				}
+				if (i <= j) {
+					final int swap = tree[i];
+					tree[i++] = tree[j];
+					tree[j--] = swap;
+				}
+			}
+			if (k <= j) {
+				hi = j;
+			} else if (k >= i) {
+				lo = i;
+			} else {
+				return;
+			}
+		}
+	}
+
+	/** Returns the index of the point nearest to (x, y), or -1 if all points were removed. */
+	int nearest(final double x, final double y) {
+		queryX = x;
+		queryY = y;
+		bestDist = Double.POSITIVE_INFINITY;
+		best = -1;
+		search(0, size, true);
+		return best;
+	}
+
+	private void search(final int lo, final int hi, final boolean vertical) {
+		if (lo >= hi) {
+			return;
+		}
+		final int mid = (lo + hi) >>> 1;
+		if (alive[mid] == 0) {
+			return;
+		}
+		final int point = tree[mid];
+		if (!removed[point]) {
+			final double dx = queryX - xs[point], dy = queryY - ys[point];
+			final double dist = dx * dx + dy * dy;
+			if (dist < bestDist) {
+				bestDist = dist;
+				best = point;
+			}
+		}
+		final double diff = vertical ? queryX - xs[point] : queryY - ys[point];
+		if (diff < 0) {
+			search(lo, mid, !vertical);
+			if (diff * diff < bestDist) {
+				search(mid + 1, hi, !vertical);
+			}
+		} else {
+			search(mid + 1, hi, !vertical);
+			if (diff * diff < bestDist) {
+				search(lo, mid, !vertical);
+			}
+		}
+	}
+
+	/** Removes the specified point from the tree. Removing a point twice has no effect. */
+	void remove(final int point) {
+		if (removed[point]) {
+			return;
+		}
+		removed[point] = true;
+		final int pos = position[point];
+		int lo = 0, hi = size;
+		for (;;) {
+			final int mid = (lo + hi) >>> 1;
+			alive[mid]--;
+			if (pos == mid) {
+				return;
+			} else if (pos < mid) {
+				hi = mid;
+			} else {
+				lo = mid + 1;
+			}
+		}
+	}
+}
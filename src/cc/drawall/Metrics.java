@@ -0,0 +1,153 @@
+/*
+ * This file is part of DraWall.
+ * DraWall is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * DraWall is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of the GNU
+ * General Public License along with DraWall. If not, see <http://www.gnu.org/licenses/>.
+ * © 2012–2014 Nathanaël Jourdane
+ * © 2014-2015 Victor Adam
+ */
+
+package cc.drawall;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Counters and histograms describing the conversions done by this process, exposed by the
+  * web service in the Prometheus text format. Everything is updated without locking. */
+final class Metrics {
+	/* Distinct (input-type, output-type) pairs tracked; later ones are counted as "other". */
+	private static final int MAX_PAIRS = 256;
+
+	static final LongAdder bytesIn = new LongAdder();
+	static final LongAdder bytesOut = new LongAdder();
+	static final LongAdder segments = new LongAdder();
+	static final LongAdder inFlight = new LongAdder();
+
+	/** Time spent in each phase of a conversion. Importing excludes the time spent exporting
+	  * segments as they are imported. */
+	static final Histogram importing = new Histogram();
+	static final Histogram merging = new Histogram();
+	static final Histogram optimizing = new Histogram();
+	static final Histogram exporting = new Histogram();
+
+	private static final ConcurrentMap<String, Histogram> latencies = new ConcurrentHashMap<>();
+	private static final ConcurrentMap<String, LongAdder> requests = new ConcurrentHashMap<>();
+
+	private Metrics() { /* Utility class */ }
+
+	/** Records a web query for a conversion. */
+	static void request(final String input, final String output, final int status, final long nanos) {
+		final String pair = "input=\"" + escape(input) + "\",output=\"" + escape(output) + '"';
+		final String key = latencies.containsKey(pair) || latencies.size() < MAX_PAIRS
+			? pair : "input=\"other\",output=\"other\"";
+		latencies.computeIfAbsent(key, k -> new Histogram()).record(nanos);
+		requests.computeIfAbsent(key + ",status=\"" + status + '"', k -> new LongAdder()).increment();
+	}
+
+	/** Writes every metric in the Prometheus text format.
+	  * @param queued the number of conversions waiting for a worker
+	  * @param connections the number of open connections */
+	static String render(final int queued, final int connections) {
+		final StringBuilder out = new StringBuilder(4096);
+		counter(out, "convector_requests_total", "Conversion queries answered.");
+		for (final Map.Entry<String, LongAdder> entry: requests.entrySet()) {
+			out.append("convector_requests_total{").append(entry.getKey()).append("} ")
+				.append(entry.getValue().sum()).append('\n');
+		}
+		histogram(out, "convector_request_seconds", "Time taken to answer conversion queries.");
+		for (final Map.Entry<String, Histogram> entry: latencies.entrySet()) {
+			entry.getValue().write(out, "convector_request_seconds", entry.getKey());
+		}
+		histogram(out, "convector_phase_seconds", "Time spent in each phase of conversions.");
+		importing.write(out, "convector_phase_seconds", "phase=\"import\"");
+		merging.write(out, "convector_phase_seconds", "phase=\"merge\"");
+		optimizing.write(out, "convector_phase_seconds", "phase=\"optimize\"");
+		exporting.write(out, "convector_phase_seconds", "phase=\"export\"");
+		counter(out, "convector_received_bytes_total", "Bytes of input received.");
+		out.append("convector_received_bytes_total ").append(bytesIn.sum()).append('\n');
+		counter(out, "convector_sent_bytes_total", "Bytes of output sent.");
+		out.append("convector_sent_bytes_total ").append(bytesOut.sum()).append('\n');
+		counter(out, "convector_segments_total", "Segments written by exporters.");
+		out.append("convector_segments_total ").append(segments.sum()).append('\n');
+		gauge(out, "convector_conversions_in_flight", "Conversions running.");
+		out.append("convector_conversions_in_flight ").append(inFlight.sum()).append('\n');
+		gauge(out, "convector_queued_conversions", "Conversions waiting for a worker.");
+		out.append("convector_queued_conversions ").append(queued).append('\n');
+		gauge(out, "convector_connections", "Open connections.");
+		out.append("convector_connections ").append(connections).append('\n');
+		return out.toString();
+	}
+
+	private static void counter(final StringBuilder out, final String name, final String help) {
+		out.append("# HELP ").append(name).append(' ').append(help).append("\n# TYPE ").append(name).append(" counter\n");
+	}
+
+	private static void gauge(final StringBuilder out, final String name, final String help) {
+		out.append("# HELP ").append(name).append(' ').append(help).append("\n# TYPE ").append(name).append(" gauge\n");
+	}
+
+	private static void histogram(final StringBuilder out, final String name, final String help) {
+		out.append("# HELP ").append(name).append(' ').append(help).append("\n# TYPE ").append(name).append(" histogram\n");
+	}
+
+	private static String escape(final String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	/** A histogram of durations with log-linear buckets, in the manner of HdrHistogram:
+	  * each power of two of microseconds is split into 8 buckets, so that recorded values are
+	  * known within 12.5%. Buckets are exposed at each power of two. */
+	static final class Histogram {
+		private static final int SUB_BITS = 3;
+		private static final int SUB = 1 << SUB_BITS;
+		/* Largest power of two of microseconds tracked, about 9.5 hours; longer values are clamped. */
+		private static final int MAX_EXPONENT = 35;
+
+		private final AtomicLongArray counts = new AtomicLongArray((MAX_EXPONENT + 1) * SUB);
+		private final LongAdder sum = new LongAdder();
+
+		void record(final long nanos) {
+			sum.add(nanos);
+			counts.incrementAndGet(index(Math.max(0, nanos / 1000)));
+		}
+
+		/* Values below SUB have a bucket each; above, the exponent picks a group of SUB buckets
+		 * and the bits following the leading one pick the bucket in it. */
+		private static int index(final long micros) {
+			if (micros < SUB) {
+				return (int) micros;
+			}
+			final int exponent = 63 - Long.numberOfLeadingZeros(micros);
+			if (exponent > MAX_EXPONENT) {
+				return (MAX_EXPONENT + 1) * SUB - 1;
+			}
+			return (exponent - SUB_BITS + 1) * SUB + (int) (micros >>> (exponent - SUB_BITS)) - SUB;
+		}
+
+		void write(final StringBuilder out, final String name, final String labels) {
+			long total = 0;
+			int bucket = 0;
+			for (int exponent = SUB_BITS; exponent <= MAX_EXPONENT; exponent++) {
+				// Add up the buckets holding values below 2^(exponent + 1) microseconds
+				for (final int end = index((1L << (exponent + 1)) - 1); bucket <= end; bucket++) {
+					total += counts.get(bucket);
+				}
+				out.append(name).append("_bucket{").append(labels).append(",le=\"")
+					.append((1L << (exponent + 1)) / 1e6).append("\"} ").append(total).append('\n');
+			}
+			for (; bucket < counts.length(); bucket++) {
+				total += counts.get(bucket);
+			}
+			out.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ").append(total).append('\n');
+			out.append(name).append("_sum{").append(labels).append("} ").append(sum.sum() / 1e9).append('\n');
+			out.append(name).append("_count{").append(labels).append("} ").append(total).append('\n');
+		}
+	}
+}
@@ -34,13 +34,40 @@ public interface Output {
 
 	void writeSegment(final int type, final double... coords);
 
+	/** Writes several segments at once.
+	  * The default implementation calls writeSegment for each of them; sinks that can
+	  * process whole paths more efficiently should override it.
+	  * @param types the types of the segments, as defined by PathIterator
+	  * @param coords the coordinates of the segments, packed back to back
+	  * @param count the number of segments to write */
+	default void writeSegments(final byte[] types, final double[] coords, final int count) {
+		final double[] segment = new double[6];
+		for (int i = 0, j = 0; i < count; i++) {
+			final int size = coordinates(types[i]);
+			System.arraycopy(coords, j, segment, 0, size);
+			writeSegment(types[i], segment);
+			j += size;
+		}
+	}
+
 	void writeFooter();
 
-	default void paint(final Color color, final Shape shape) {
-		final double[] coords = new double[6];
+	/** Whether stroked paths should be painted as they are, rather than as the outline of
+	  * the area covered by the pen. The default is to outline them. */
+	default boolean centerline() {
+		return false;
+	}
+
+	/** Writes a shape in the specified color.
+	  * @param scratch a buffer for the segments of the shape, reused from one call to the next */
+	default void paint(final Color color, final Shape shape, final Segments scratch) {
+		scratch.read(shape.getPathIterator(null));
 		writeColor(color.getRed(), color.getGreen(), color.getBlue());
-		for (final PathIterator i = shape.getPathIterator(null); !i.isDone(); i.next()) {
-			writeSegment(i.currentSegment(coords), coords);
-		}
+		writeSegments(scratch.types, scratch.coords, scratch.count);
+	}
+
+	/** Returns the number of coordinates used by a segment of the specified type. */
+	static int coordinates(final int type) {
+		return type == PathIterator.SEG_CLOSE ? 0 : type == PathIterator.SEG_MOVETO ? 2 : 2 * type;
 	}
 }
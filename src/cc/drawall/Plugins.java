@@ -0,0 +1,98 @@
+/*
+ * This file is part of DraWall.
+ * DraWall is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * DraWall is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of the GNU
+ * General Public License along with DraWall. If not, see <http://www.gnu.org/licenses/>.
+ * © 2012–2014 Nathanaël Jourdane
+ * © 2014-2015 Victor Adam
+ */
+
+package cc.drawall;
+
+import java.io.BufferedReader;
+import java.io.IOError;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.Constructor;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.InputMismatchException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/** The plugins implementing a service, indexed by the filetype they handle.
+  * Provider classes are listed from META-INF/services once, like ServiceLoader does, but
+  * without loading or instantiating them: the filetype is derived from the class name, e.g.
+  * SVGImporter handles "svg". A class is only loaded when its filetype is first requested,
+  * and each request then gets a fresh instance from its cached constructor. */
+final class Plugins<T> {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	static final Plugins<Importer> importers = new Plugins<>(Importer.class);
+	static final Plugins<Exporter> exporters = new Plugins<>(Exporter.class);
+
+	private final Class<T> service;
+	private final Map<String, String> classNames = new HashMap<>();
+	private final Map<String, Supplier<T>> factories = new ConcurrentHashMap<>();
+
+	private Plugins(final Class<T> service) {
+		this.service = service;
+		final String suffix = service.getSimpleName();
+		try {
+			final Enumeration<URL> files = Plugins.class.getClassLoader()
+				.getResources("META-INF/services/" + service.getName());
+			while (files.hasMoreElements()) {
+				try (final BufferedReader in = new BufferedReader(new InputStreamReader(
+						files.nextElement().openStream(), UTF8))) {
+					for (String line = in.readLine(); line != null; line = in.readLine()) {
+						final String className = line.replaceFirst("#.*", "").trim();
+						if (className.isEmpty()) {
+							continue;
+						}
+						final String name = className.substring(className.lastIndexOf('.') + 1)
+							.replace(suffix, "").toLowerCase(Locale.ROOT);
+						classNames.putIfAbsent(name, className);
+					}
+				}
+			}
+		} catch (final IOException e) {
+			throw new IOError(e);
+		}
+	}
+
+	/** Returns a new instance of the plugin handling the specified filetype. */
+	T create(final String filetype) {
+		final String name = String.valueOf(filetype).toLowerCase(Locale.ROOT);
+		if (!classNames.containsKey(name)) {
+			throw new InputMismatchException("No suitable " + service.getSimpleName().toLowerCase(Locale.ROOT)
+				+ " found for " + filetype);
+		}
+		return factories.computeIfAbsent(name, this::factory).get();
+	}
+
+	private Supplier<T> factory(final String name) {
+		final Constructor<? extends T> constructor;
+		try {
+			constructor = Class.forName(classNames.get(name), true, Plugins.class.getClassLoader())
+				.asSubclass(service).getConstructor();
+		} catch (final ReflectiveOperationException | ClassCastException e) {
+			throw new ServiceConfigurationError("Cannot load " + classNames.get(name), e);
+		}
+		return () -> {
+			try {
+				return constructor.newInstance();
+			} catch (final ReflectiveOperationException e) {
+				throw new ServiceConfigurationError("Cannot instantiate " + classNames.get(name), e);
+			}
+		};
+	}
+}
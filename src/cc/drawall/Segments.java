@@ -0,0 +1,49 @@
+/*
+ * This file is part of DraWall.
+ * DraWall is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * DraWall is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of the GNU
+ * General Public License along with DraWall. If not, see <http://www.gnu.org/licenses/>.
+ * © 2012–2014 Nathanaël Jourdane
+ * © 2014-2015 Victor Adam
+ */
+
+package cc.drawall;
+
+import java.awt.geom.PathIterator;
+import java.util.Arrays;
+
+/** A reusable buffer holding the segments of a path, packed as Output.writeSegments takes them.
+  * Painting every shape through the same buffer saves allocating arrays for each of them. */
+public final class Segments {
+	/* Segment types, and their coordinates back to back. */
+	byte[] types = new byte[16];
+	double[] coords = new double[96];
+	int count;
+
+	/* Coordinates of the current segment of the path being read. */
+	private final double[] segment = new double[6];
+
+	/** Replaces the content of this buffer with the remaining segments of the specified path.
+	  * @return this buffer */
+	Segments read(final PathIterator itr) {
+		count = 0;
+		int numCoords = 0;
+		for (; !itr.isDone(); itr.next()) {
+			if (count == types.length) {
+				types = Arrays.copyOf(types, 2 * count);
+			}
+			if (numCoords + 6 > coords.length) {
+				coords = Arrays.copyOf(coords, 2 * coords.length);
+			}
+			final int type = itr.currentSegment(segment);
+			System.arraycopy(segment, 0, coords, numCoords, Output.coordinates(type));
+			types[count++] = (byte) type;
+			numCoords += Output.coordinates(type);
+		}
+		return this;
+	}
+}
@@ -16,47 +16,130 @@ package cc.drawall;
 import java.io.IOError;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.WritableByteChannel;
 
 /** The base class for all Exporter plugins.
   * Provides a common template for all output filetypes. Abstract methods should be overriden
   * to implement the details relevant to a particular filetype. */
 class SimpleOutput implements Output {
+	/* Size of the buffer in which exporter output is collected before being written. */
+	private static final int BUFFER_SIZE = Integer.getInteger("output.buffer", 1 << 16);
 
 	final WritableByteChannel out;
 	final Exporter exporter;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private final ByteBuffer[] gather = {buffer, null};
+
+	/** Time spent in the exporter and writing its output so far, in nanoseconds. */
+	long nanos;
+	private long segments;
+	private boolean centerline;
 
 	SimpleOutput(final WritableByteChannel out, final Exporter exporter) {
 		this.out = out;
 		this.exporter = exporter;
+		this.centerline = exporter.centerline();
+	}
+
+	/** Overrides the exporter's preference for painting strokes as centerlines. */
+	SimpleOutput setCenterline(final boolean centerline) {
+		this.centerline = centerline;
+		return this;
 	}
 
+	@Override
+	public boolean centerline() {
+		return centerline;
+	}
+
+	/* Collects exporter output, only writing to the channel when the buffer is full. */
 	private void write(final ByteBuffer buf) {
+		if (buf.remaining() <= buffer.remaining()) {
+			buffer.put(buf);
+			return;
+		}
+		buffer.flip();
+		try {
+			if (buf.remaining() > buffer.capacity() && out instanceof GatheringByteChannel) {
+				// Too large to be buffered: write it along with the buffer in a single call
+				gather[1] = buf;
+				while (buf.hasRemaining()) {
+					((GatheringByteChannel) out).write(gather);
+				}
+				gather[1] = null;
+			} else {
+				while (buffer.hasRemaining()) {
+					out.write(buffer);
+				}
+				while (buf.remaining() > buffer.capacity()) {
+					out.write(buf);
+				}
+			}
+		} catch (final IOException e) {
+			throw new IOError(e);
+		}
+		buffer.clear();
+		buffer.put(buf);
+	}
+
+	/* Writes everything buffered so far to the channel. */
+	private void flush() {
+		buffer.flip();
 		try {
-			out.write(buf);
+			while (buffer.hasRemaining()) {
+				out.write(buffer);
+			}
 		} catch (final IOException e) {
 			throw new IOError(e);
 		}
+		buffer.clear();
+	}
+
+	/** Returns the ratio between input units and output units for a drawing of the specified
+	  * size: exporters write coordinates as integers between 0 and 65535. */
+	static double ratio(final double width, final double height) {
+		return Math.max(width, height) / 65535;
 	}
 
 	@Override
 	public void setSize(final double width, final double height) {
-		exporter.ratio = Math.max(width, height) / 65535;
+		final long start = System.nanoTime();
+		exporter.ratio = ratio(width, height);
 		write(exporter.header(width, height, exporter.ratio));
+		nanos += System.nanoTime() - start;
 	}
 
 	@Override
 	public void writeColor(final double red, final double green, final double blue) {
+		final long start = System.nanoTime();
 		write(exporter.color(red, green, blue));
+		nanos += System.nanoTime() - start;
 	}
 
 	@Override
 	public void writeSegment(final int type, final double... coords) {
+		final long start = System.nanoTime();
 		write(exporter.segment(type, coords));
+		nanos += System.nanoTime() - start;
+		segments++;
+	}
+
+	@Override
+	public void writeSegments(final byte[] types, final double[] coords, final int count) {
+		final long start = System.nanoTime();
+		write(exporter.segments(types, coords, count));
+		nanos += System.nanoTime() - start;
+		segments += count;
 	}
 
 	@Override
 	public void writeFooter() {
+		final long start = System.nanoTime();
 		write(exporter.footer());
+		flush();
+		nanos += System.nanoTime() - start;
+		Metrics.exporting.record(nanos);
+		Metrics.segments.add(segments);
 	}
 }
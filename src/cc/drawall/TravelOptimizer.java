@@ -0,0 +1,313 @@
+/*
+ * This file is part of DraWall.
+ * DraWall is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * DraWall is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of the GNU
+ * General Public License along with DraWall. If not, see <http://www.gnu.org/licenses/>.
+ * © 2012–2014 Nathanaël Jourdane
+ * © 2014-2015 Victor Adam
+ */
+
+package cc.drawall;
+
+import java.awt.Shape;
+import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+/** Orders a list of shapes so as to reduce the distance moved with the pen up between them.
+  * A greedy nearest-neighbour tour is built first, using a k-d tree of the start and end points
+  * of every shape; a shape may be entered by its end point, in which case it is drawn reversed.
+  * The tour is then improved by 2-opt and Or-opt moves until no move helps or time runs out. */
+final class TravelOptimizer {
+	private static final Logger log = Logger.getLogger(TravelOptimizer.class.getName());
+
+	/* Time allowed for the improvement pass, in milliseconds. */
+	private static final long MILLIS = Long.getLong("optimize.millis", 1000);
+
+	/* How far apart, in tour positions, two shapes can be for a move to consider them. */
+	private static final int WINDOW = 32;
+
+	/* Longest chain of shapes moved by a single Or-opt move. */
+	private static final int CHAIN = 3;
+
+	/* Improvements smaller than this are ignored, to avoid cycling on rounding errors. */
+	private static final double EPSILON = 1e-6;
+
+	private final int size;
+	private final double[] startX;
+	private final double[] startY;
+	private final double[] endX;
+	private final double[] endY;
+
+	/** The index of the shape drawn at each position of the tour. */
+	final int[] order;
+	/** Whether the shape drawn at each position of the tour should be drawn backwards. */
+	final boolean[] reversed;
+
+	TravelOptimizer(final List<? extends Shape> shapes) {
+		size = shapes.size();
+		startX = new double[size];
+		startY = new double[size];
+		endX = new double[size];
+		endY = new double[size];
+		order = new int[size];
+		reversed = new boolean[size];
+		final double[] coords = new double[6];
+		for (int i = 0; i < size; i++) {
+			order[i] = i;
+			boolean first = true;
+			double x = 0, y = 0, moveX = 0, moveY = 0;
+			for (final PathIterator itr = shapes.get(i).getPathIterator(null); !itr.isDone(); itr.next()) {
+				final int type = itr.currentSegment(coords);
+				if (type == PathIterator.SEG_CLOSE) {
+					x = moveX;
+					y = moveY;
+					continue;
+				}
+				final int last = type == PathIterator.SEG_CUBICTO ? 4 : type == PathIterator.SEG_QUADTO ? 2 : 0;
+				x = coords[last];
+				y = coords[last + 1];
+				if (type == PathIterator.SEG_MOVETO) {
+					moveX = x;
+					moveY = y;
+				}
+				if (first) {
+					startX[i] = x;
+					startY[i] = y;
+					first = false;
+				}
+			}
+			endX[i] = x;
+			endY[i] = y;
+		}
+	}
+
+	/** Computes the tour, logging the pen-up distance before and after. */
+	TravelOptimizer run() {
+		final double before = travel();
+		final long deadline = System.currentTimeMillis() + MILLIS;
+		greedy();
+		final double greedy = travel();
+		improve(deadline);
+		for (int i = 0; i < size; i++) {
+			// Reversing a shape that ends where it starts would change nothing
+			reversed[i] &= startX[order[i]] != endX[order[i]] || startY[order[i]] != endY[order[i]];
+		}
+		log.info(String.format("Pen-up travel: %.0f before, %.0f after nearest neighbour, %.0f after 2-opt",
+			before, greedy, travel()));
+		return this;
+	}
+
+	/* Builds a tour starting from the origin and always moving to the nearest free end point. */
+	private void greedy() {
+		final double[] xs = Arrays.copyOf(startX, 2 * size);
+		final double[] ys = Arrays.copyOf(startY, 2 * size);
+		System.arraycopy(endX, 0, xs, size, size);
+		System.arraycopy(endY, 0, ys, size, size);
+		final KdTree tree = new KdTree(xs, ys);
+		double x = 0, y = 0;
+		for (int i = 0; i < size; i++) {
+			final int point = tree.nearest(x, y);
+			final int shape = point % size;
+			tree.remove(shape);
+			tree.remove(shape + size);
+			order[i] = shape;
+			reversed[i] = point >= size;
+			x = outX(i);
+			y = outY(i);
+		}
+	}
+
+	private void improve(final long deadline) {
+		boolean improved = true;
+		while (improved && System.currentTimeMillis() < deadline) {
+			improved = false;
+			for (int i = 0; i < size && System.currentTimeMillis() < deadline; i++) {
+				improved |= twoOpt(i) || orOpt(i);
+			}
+		}
+	}
+
+	/* Tries reversing the part of the tour between position i and a later position. */
+	private boolean twoOpt(final int i) {
+		for (int j = i + 1; j < size && j <= i + WINDOW; j++) {
+			final double before = dist(outX(i - 1), outY(i - 1), inX(i), inY(i)) + link(j);
+			final double after = dist(outX(i - 1), outY(i - 1), outX(j), outY(j))
+				+ (j + 1 < size ? dist(inX(i), inY(i), inX(j + 1), inY(j + 1)) : 0);
+			if (after < before - EPSILON) {
+				for (int lo = i, hi = j; lo <= hi; lo++, hi--) {
+					final int swap = order[lo];
+					order[lo] = order[hi];
+					order[hi] = swap;
+					final boolean rev = reversed[lo];
+					reversed[lo] = !reversed[hi];
+					reversed[hi] = !rev;
+				}
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/* Tries moving a short chain of shapes starting at position i elsewhere in the tour,
+	 * possibly reversed. */
+	private boolean orOpt(final int i) {
+		for (int len = 1; len <= CHAIN && i + len <= size; len++) {
+			final int last = i + len - 1;
+			final double gain = dist(outX(i - 1), outY(i - 1), inX(i), inY(i)) + link(last)
+				- (last + 1 < size ? dist(outX(i - 1), outY(i - 1), inX(last + 1), inY(last + 1)) : 0);
+			for (int j = Math.max(-1, i - WINDOW); j < size && j <= last + WINDOW; j++) {
+				if (j >= i - 1 && j <= last) {
+					continue;
+				}
+				final double cost = link(j);
+				final boolean end = j + 1 == size;
+				final double forward = dist(outX(j), outY(j), inX(i), inY(i))
+					+ (end ? 0 : dist(outX(last), outY(last), inX(j + 1), inY(j + 1)));
+				final double backward = dist(outX(j), outY(j), outX(last), outY(last))
+					+ (end ? 0 : dist(inX(i), inY(i), inX(j + 1), inY(j + 1)));
+				if (Math.min(forward, backward) - cost < gain - EPSILON) {
+					move(i, len, j, backward < forward);
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/* Moves the chain of len shapes at position i right after position j. */
+	private void move(final int i, final int len, final int j, final boolean reverse) {
+		final int[] chain = Arrays.copyOfRange(order, i, i + len);
+		final boolean[] chainRev = Arrays.copyOfRange(reversed, i, i + len);
+		final int dest;
+		if (j < i) {
+			System.arraycopy(order, j + 1, order, j + 1 + len, i - j - 1);
+			System.arraycopy(reversed, j + 1, reversed, j + 1 + len, i - j - 1);
+			dest = j + 1;
+		} else {
+			System.arraycopy(order, i + len, order, i, j - i - len + 1);
+			System.arraycopy(reversed, i + len, reversed, i, j - i - len + 1);
+			dest = j - len + 1;
+		}
+		for (int k = 0; k < len; k++) {
+			order[dest + k] = chain[reverse ? len - 1 - k : k];
+			reversed[dest + k] = chainRev[reverse ? len - 1 - k : k] ^ reverse;
+		}
+	}
+
+	/* Returns the total distance moved with the pen up, starting from the origin. */
+	private double travel() {
+		double total = 0;
+		for (int i = -1; i < size; i++) {
+			total += link(i);
+		}
+		return total;
+	}
+
+	/* Returns the distance between the end of position i and the start of position i + 1. */
+	private double link(final int i) {
+		return i + 1 < size ? dist(outX(i), outY(i), inX(i + 1), inY(i + 1)) : 0;
+	}
+
+	private double inX(final int i) {
+		return reversed[i] ? endX[order[i]] : startX[order[i]];
+	}
+
+	private double inY(final int i) {
+		return reversed[i] ? endY[order[i]] : startY[order[i]];
+	}
+
+	private double outX(final int i) {
+		return i < 0 ? 0 : reversed[i] ? startX[order[i]] : endX[order[i]];
+	}
+
+	private double outY(final int i) {
+		return i < 0 ? 0 : reversed[i] ? startY[order[i]] : endY[order[i]];
+	}
+
+	private static double dist(final double ax, final double ay, final double bx, final double by) {
+		return Math.hypot(bx - ax, by - ay);
+	}
+
+	/** Returns a Shape with the same geometry, drawn backwards: subpaths are in reverse order,
+	  * and each of them starts from its former end point. */
+	static Shape reverse(final Shape shape) {
+		final PathIterator itr = shape.getPathIterator(null);
+		final Path2D result = new Path2D.Double(itr.getWindingRule());
+		final List<double[]> subpaths = new ArrayList<>();
+		final double[] coords = new double[6];
+		// Each point is stored as (x, y, type of the segment it ends or -1 for control points);
+		// the last element of a subpath tells whether it is closed
+		double[] points = new double[16];
+		int numPoints = 0;
+		boolean closed = false;
+		for (; !itr.isDone(); itr.next()) {
+			final int type = itr.currentSegment(coords);
+			if (numPoints > 0 && (type == PathIterator.SEG_MOVETO || closed)) {
+				final double moveX = points[0], moveY = points[1];
+				points[numPoints] = closed ? 1 : 0;
+				subpaths.add(Arrays.copyOf(points, numPoints + 1));
+				numPoints = 0;
+				if (type != PathIterator.SEG_MOVETO) {
+					// Segments following a closePath start from the last moveTo
+					points[numPoints++] = moveX;
+					points[numPoints++] = moveY;
+					points[numPoints++] = PathIterator.SEG_MOVETO;
+				}
+			}
+			closed = type == PathIterator.SEG_CLOSE;
+			final int count = closed ? 0 : type == PathIterator.SEG_MOVETO ? 2 : 2 * type;
+			if (numPoints + 3 * count / 2 + 4 > points.length) {
+				points = Arrays.copyOf(points, 2 * points.length + 3 * count);
+			}
+			for (int k = 0; k < count; k += 2) {
+				points[numPoints++] = coords[k];
+				points[numPoints++] = coords[k + 1];
+				points[numPoints++] = k + 2 == count ? type : -1;
+			}
+			if (closed && numPoints > 0 && (points[numPoints - 3] != points[0]
+					|| points[numPoints - 2] != points[1])) {
+				// Make the closing line explicit, so that it can be walked backwards
+				points[numPoints++] = points[0];
+				points[numPoints++] = points[1];
+				points[numPoints++] = PathIterator.SEG_LINETO;
+			}
+		}
+		if (numPoints > 0) {
+			points[numPoints] = closed ? 1 : 0;
+			subpaths.add(Arrays.copyOf(points, numPoints + 1));
+		}
+		for (int s = subpaths.size() - 1; s >= 0; s--) {
+			final double[] p = subpaths.get(s);
+			int k = p.length - 4;
+			result.moveTo(p[k], p[k + 1]);
+			while (k > 0) {
+				// Walk back to the start of the segment ending at point k
+				int start = k - 3;
+				while (p[start + 2] == -1) {
+					start -= 3;
+				}
+				final int type = (int) p[k + 2];
+				if (type == PathIterator.SEG_QUADTO) {
+					result.quadTo(p[k - 3], p[k - 2], p[start], p[start + 1]);
+				} else if (type == PathIterator.SEG_CUBICTO) {
+					result.curveTo(p[k - 3], p[k - 2], p[k - 6], p[k - 5], p[start], p[start + 1]);
+				} else {
+					result.lineTo(p[start], p[start + 1]);
+				}
+				k = start;
+			}
+			if (p[p.length - 1] != 0) {
+				result.closePath();
+			}
+		}
+		return result;
+	}
+}
@@ -12,68 +12,438 @@
 
 package cc.drawall;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOError;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.URLDecoder;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
+/** A connection to the web interface.
+  * A single thread runs a Selector loop that accepts connections, reads requests and writes
+  * responses without blocking. Once the body of a request has been read, the connection stops
+  * reading and is handed to a pool of workers for the conversion; the response is then written
+  * by the loop again. Requests pipelined behind it stay in the buffer until it is answered. */
 class WebService implements Runnable {
 	private static final Logger log = Logger.getLogger(WebService.class.getName());
-	private static final ByteBuffer html = ByteBuffer.allocate(4096);
 	private static final Charset ASCII = Charset.forName("US-ASCII");
+	/* The web interface, for connections kept open or closed after it is sent. */
+	private static final ByteBuffer html;
+	private static final ByteBuffer htmlClose;
+	private static final ByteBuffer unavailable = response("503 Service Unavailable",
+		"Retry-After: 1\r\nConnection: close\r\nContent-Length: 0\r\n");
+	private static final ByteBuffer tooLarge = response("413 Payload Too Large",
+		"Connection: close\r\nContent-Length: 0\r\n");
+	private static final ByteBuffer badRequest = response("400 Bad Request",
+		"Connection: close\r\nContent-Length: 0\r\n");
+	private static final ByteBuffer lengthRequired = response("411 Length Required",
+		"Connection: close\r\nContent-Length: 0\r\n");
+	private static final ByteBuffer proceed = response("100 Continue", "");
+	private static final ConversionCache cache = ConversionCache.fromProperties();
+
+	/* Number of conversions running at once, and number of requests waiting for one. */
+	private static final int THREADS = Integer.getInteger("web.threads",
+		Runtime.getRuntime().availableProcessors());
+	private static final int QUEUE = Integer.getInteger("web.queue", 64);
+	private static final ThreadPoolExecutor pool = new ThreadPoolExecutor(THREADS, THREADS, 0, TimeUnit.SECONDS,
+		new ArrayBlockingQueue<>(QUEUE));
+
+	/* Total size of the request bodies being processed at once, in KiB.
+	 * Each request is admitted only if its Content-Length fits in what is left;
+	 * larger requests are refused. */
+	private static final int ADMISSION = Integer.getInteger("web.admission", 64 << 10);
+	private static final Semaphore admission = new Semaphore(ADMISSION);
+
+	/* How long a connection may stay idle, or a client may take to send a request, in milliseconds. */
+	private static final int TIMEOUT = Integer.getInteger("web.timeout", 10000);
+
+	private static final Map<String, String> MIME_TYPES = new HashMap<>();
+
+	/* Conversion options that clients may set in the query string, e.g. /svg/gcode?flatten=2 */
+	private static final List<String> WEB_OPTIONS = Arrays.asList("flatten", "strokes");
+
+	/* Connections whose conversion is finished, waiting for the loop to write the response. */
+	private static final Queue<WebService> finished = new ConcurrentLinkedQueue<>();
 
 	private final SocketChannel client;
+	private final SelectionKey key;
+	private final ByteBuffer in = ByteBuffer.allocate(8192);
+	private ByteBuffer[] out = {};
+	/* The response prepared by the worker, for the loop to write. */
+	private ByteBuffer[] answer;
+	private long lastActive = System.currentTimeMillis();
 
-	WebService(final SocketChannel client) {
+	/* The request being answered, its body, and the admission permits it holds. */
+	private HTTPRequest request;
+	private ByteBuffer body;
+	private int weight;
+	/* Bytes of the body of an answered request that must still be read and ignored. */
+	private int skip;
+	/* When the body of the current request was complete, for metrics. */
+	private long received;
+	/* Whether the response to the current request is being written, or its conversion running. */
+	private boolean responding;
+	private boolean converting;
+	private boolean closeAfter;
+
+	private WebService(final SocketChannel client, final Selector selector) throws IOException {
 		this.client = client;
+		client.configureBlocking(false);
+		key = client.register(selector, SelectionKey.OP_READ, this);
 	}
 
 	static {
-		html.put("HTTP/1.1 200 OK\nContent-Type: text/html\n\n".getBytes(ASCII));
+		MIME_TYPES.put("svg", "image/svg+xml");
+		MIME_TYPES.put("ps", "application/postscript");
+		MIME_TYPES.put("pdf", "application/pdf");
+		final ByteBuffer page = ByteBuffer.allocate(4096);
 		try (final InputStream in = WebService.class.getResourceAsStream("/convector.html");
 				final ReadableByteChannel chan = Channels.newChannel(in)) {
-			chan.read(html);
-			html.flip();
+			while (chan.read(page) >= 0 && page.hasRemaining()) {
+				continue;
+			}
+			page.flip();
 		} catch (final IOException e) {
 			throw new IOError(e);
 		}
+		html = page(page.duplicate(), "");
+		htmlClose = page(page, connection(true));
 	}
 
+	/* Returns the response holding the web interface, with the specified extra headers. */
+	private static ByteBuffer page(final ByteBuffer page, final String headers) {
+		final ByteBuffer head = response("200 OK", "Content-Type: text/html\r\n" + headers
+			+ "Content-Length: " + page.remaining() + "\r\n");
+		final ByteBuffer result = ByteBuffer.allocateDirect(head.remaining() + page.remaining()).put(head).put(page);
+		result.flip();
+		return result.asReadOnlyBuffer();
+	}
+
+	/* Returns the header telling the client that the connection is closed after the response, if it is. */
+	private static String connection(final boolean close) {
+		return close ? "Connection: close\r\n" : "";
+	}
+
+	/* Returns the head of a response, as a read-only buffer to be duplicated for each use. */
+	private static ByteBuffer response(final String status, final String headers) {
+		return ByteBuffer.wrap(("HTTP/1.1 " + status + "\r\n" + headers + "\r\n").getBytes(ASCII))
+			.asReadOnlyBuffer();
+	}
+
+	/* Reads what the client sent, and handles any request that is complete. */
+	private void readable() throws IOException {
+		if (client.read(in) < 0) {
+			close();
+			return;
+		}
+		lastActive = System.currentTimeMillis();
+		process();
+	}
+
+	/* Parses the buffered bytes, unless the current request is still waiting for its response. */
+	private void process() throws IOException {
+		if (responding || converting || !client.isOpen()) {
+			return;
+		}
+		in.flip();
+		try {
+			if (skip > 0) {
+				final int count = Math.min(skip, in.remaining());
+				in.position(in.position() + count);
+				skip -= count;
+			}
+			if (skip == 0 && (request != null || head())) {
+				body();
+			}
+		} finally {
+			in.compact();
+		}
+	}
+
+	/* Parses the head of the next request. Returns false if more bytes are needed. */
+	private boolean head() throws IOException {
+		try {
+			request = HTTPRequest.parse(in);
+		} catch (final ProtocolException e) {
+			log.warning("Bad request from " + client.getRemoteAddress() + ": " + e.getMessage());
+			respond(badRequest.duplicate(), null, true);
+			return false;
+		}
+		if (request == null) {
+			if (in.remaining() == in.capacity()) {
+				log.warning("Request head too large from " + client.getRemoteAddress());
+				respond(badRequest.duplicate(), null, true);
+			}
+			return false;
+		}
+		log.info("Received query: " + request.url + " from " + client.getRemoteAddress());
+		if (request.chunked) {
+			// Bodies are only delimited by their Content-Length, so the next request can't be found
+			log.warning("Unsupported transfer coding from " + client.getRemoteAddress());
+			respond(lengthRequired.duplicate(), null, true);
+			return false;
+		}
+		if (request.url.equals("/metrics") || request.url.split("/").length < 3) {
+			// A client waiting for 100 Continue may or may not send its body: don't guess
+			final boolean close = !request.keepAlive || request.expectContinue && request.length > 0;
+			skip = request.length;
+			if (request.url.equals("/metrics")) {
+				final byte[] metrics = Metrics.render(pool.getQueue().size(), key.selector().keys().size() - 1)
+					.getBytes(ASCII);
+				respond(response("200 OK", "Content-Type: text/plain; version=0.0.4\r\n" + connection(close)
+					+ "Content-Length: " + metrics.length + "\r\n"), ByteBuffer.wrap(metrics), close);
+			} else {
+				respond((close ? htmlClose : html).duplicate(), null, close);
+			}
+			return false;
+		}
+		if (request.length > (long) ADMISSION << 10) {
+			log.warning("Refusing " + request.length + " bytes from " + client.getRemoteAddress());
+			respond(tooLarge.duplicate(), null, true);
+			return false;
+		}
+		weight = Math.min(ADMISSION, 1 + request.length / 1024);
+		if (!admission.tryAcquire(weight)) {
+			weight = 0;
+			log.warning("Rejecting " + request.length + " bytes from " + client.getRemoteAddress());
+			respond(unavailable.duplicate(), null, true);
+			return false;
+		}
+		body = ByteBuffer.allocate(request.length);
+		if (request.expectContinue && !in.hasRemaining()) {
+			send(proceed.duplicate());
+		}
+		return true;
+	}
+
+	/* Collects the body of the current request, and starts its conversion once it is complete. */
+	private void body() {
+		final int count = Math.min(in.remaining(), body.remaining());
+		final int limit = in.limit();
+		in.limit(in.position() + count);
+		body.put(in);
+		in.limit(limit);
+		if (body.hasRemaining()) {
+			return;
+		}
+		body.flip();
+		received = System.nanoTime();
+		converting = true;
+		key.interestOps(out.length == 0 ? 0 : SelectionKey.OP_WRITE);
+		try {
+			pool.execute(this);
+		} catch (final RejectedExecutionException e) {
+			log.warning("Too many queries, rejecting " + request.url);
+			converting = false;
+			release();
+			respond(unavailable.duplicate(), null, true);
+		}
+	}
+
+	/** Converts the body of the current request, then hands the connection back to the loop. */
 	@Override
 	public void run() {
-		try (final HTTPChannel query = new HTTPChannel(client)) {
-			log.info("Received query: " + query.url + " from " + client.getRemoteAddress());
-			final String[] filetypes = query.url.split("/");
-			if (filetypes.length < 3) {
-				html.rewind();
-				client.write(html);
-				return;
+		final String[] filetypes = request.url.split("/");
+		final Map<String, String> options = new HashMap<>();
+		ByteBuffer head = null, result = null;
+		int status = 500;
+		Metrics.inFlight.increment();
+		Metrics.bytesIn.add(body.limit());
+		try {
+			for (final String param: request.query.split("&")) {
+				final int i = param.indexOf('=');
+				final String name = URLDecoder.decode(i == -1 ? param : param.substring(0, i), "UTF-8");
+				if (WEB_OPTIONS.contains(name)) {
+					options.put(name, i == -1 ? "" : URLDecoder.decode(param.substring(i + 1), "UTF-8"));
+				}
 			}
-			final Map<String, String> options = new HashMap<>();
 			options.put("input-type", filetypes[1]);
-			options.put("output-type", filetypes[1]);
-			ConVector.convert(query, client, options);
-			client.shutdownOutput();
+			options.put("output-type", filetypes[2]);
+			final byte[] output = cache.get(ConversionCache.key(body.array(), body.limit(), options), () -> {
+				final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+				ConVector.convert(Channels.newChannel(new ByteArrayInputStream(body.array(), 0, body.limit())),
+					Channels.newChannel(buf), options);
+				return buf.toByteArray();
+			});
+			head = response("200 OK", "Content-Type: " + MIME_TYPES.getOrDefault(filetypes[2],
+				"application/octet-stream") + "\r\n" + connection(!request.keepAlive)
+				+ "Content-Length: " + output.length + "\r\n");
+			result = ByteBuffer.wrap(output);
+			status = 200;
+		} catch (final Throwable e) {
+			// Errors too (corrupt images, deep nesting, failed assertions): the client must get an answer
+			log.warning("Cannot convert " + request.url + ": " + e);
+			final byte[] message = String.valueOf(e.getMessage() == null ? e : e.getMessage()).getBytes(ASCII);
+			head = response("500 Internal Server Error", "Content-Type: text/plain\r\n"
+				+ connection(!request.keepAlive) + "Content-Length: " + message.length + "\r\n");
+			result = ByteBuffer.wrap(message);
+		} finally {
+			release();
+			Metrics.inFlight.decrement();
+			if (result == null) {
+				// Even building the error response failed
+				head = response("500 Internal Server Error", connection(!request.keepAlive) + "Content-Length: 0\r\n");
+				result = ByteBuffer.allocate(0);
+			}
+			Metrics.bytesOut.add(result.remaining());
+			Metrics.request(filetypes[1], filetypes[2], status, System.nanoTime() - received);
+			answer = new ByteBuffer[] {head, result};
+			finished.add(this);
+			key.selector().wakeup();
+		}
+	}
+
+	/* Called by the loop once the conversion is finished. */
+	private void converted() {
+		converting = false;
+		respond(answer[0], answer[1], !request.keepAlive);
+		answer = null;
+	}
+
+	/* Queues a response to the current request, after any interim response not yet written. */
+	private void respond(final ByteBuffer head, final ByteBuffer result, final boolean close) {
+		responding = true;
+		closeAfter = close;
+		queue(head);
+		if (result != null) {
+			queue(result);
+		}
+		if (client.isOpen()) {
+			key.interestOps(SelectionKey.OP_WRITE);
+		}
+	}
+
+	/* Queues bytes to be written while the request is still being read. */
+	private void send(final ByteBuffer buffer) {
+		queue(buffer);
+		key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+	}
+
+	/* Appends a buffer to the pending output. */
+	private void queue(final ByteBuffer buffer) {
+		out = Arrays.copyOf(out, out.length + 1);
+		out[out.length - 1] = buffer;
+	}
+
+	/* Writes as much of the pending output as the client accepts. */
+	private void writable() throws IOException {
+		client.write(out);
+		lastActive = System.currentTimeMillis();
+		if (out[out.length - 1].hasRemaining()) {
+			return;
+		}
+		out = new ByteBuffer[0];
+		if (!responding) {
+			key.interestOps(converting ? 0 : SelectionKey.OP_READ);
+			return;
+		}
+		if (closeAfter) {
+			close();
+			return;
+		}
+		responding = false;
+		request = null;
+		body = null;
+		key.interestOps(SelectionKey.OP_READ);
+		process();
+	}
+
+	/* Gives back the admission permits held by the current request. */
+	private void release() {
+		admission.release(weight);
+		weight = 0;
+	}
+
+	private void close() {
+		if (!converting) {
+			release();
+		}
+		try {
+			client.close();
 		} catch (final IOException e) {
-			throw new IOError(e);
+			log.fine("Cannot close connection: " + e);
+		}
+	}
+
+	/* Closes connections that have been idle for too long, unless they are waiting for a conversion. */
+	private static void sweep(final Selector selector) {
+		final long deadline = System.currentTimeMillis() - TIMEOUT;
+		for (final SelectionKey key: selector.keys()) {
+			final WebService conn = (WebService) key.attachment();
+			if (conn != null && !conn.converting && conn.lastActive < deadline) {
+				log.fine("Closing idle connection");
+				conn.close();
+			}
 		}
 	}
 
 	static void loop(final int port) {
-		try (final ServerSocketChannel serv = ServerSocketChannel.open()) {
+		try (final Selector selector = Selector.open();
+				final ServerSocketChannel serv = ServerSocketChannel.open()) {
 			serv.bind(new InetSocketAddress(port));
+			serv.configureBlocking(false);
+			serv.register(selector, SelectionKey.OP_ACCEPT);
 			log.info("Listening on port " + port);
+			long lastSweep = System.currentTimeMillis();
 			for (;;) {
-				new Thread(new WebService(serv.accept())).start();
+				selector.select(TIMEOUT);
+				for (WebService conn = finished.poll(); conn != null; conn = finished.poll()) {
+					conn.converted();
+				}
+				for (final Iterator<SelectionKey> itr = selector.selectedKeys().iterator(); itr.hasNext();) {
+					final SelectionKey key = itr.next();
+					itr.remove();
+					if (key.isAcceptable()) {
+						for (SocketChannel client = serv.accept(); client != null; client = serv.accept()) {
+							try {
+								new WebService(client, selector);
+							} catch (final IOException e) {
+								log.warning("Cannot accept connection: " + e);
+								client.close();
+							}
+						}
+						continue;
+					}
+					final WebService conn = (WebService) key.attachment();
+					try {
+						if (key.isValid() && key.isWritable()) {
+							conn.writable();
+						}
+						if (key.isValid() && key.isReadable()) {
+							conn.readable();
+						}
+					} catch (final IOException e) {
+						log.fine("Connection lost: " + e);
+						conn.close();
+					}
+				}
+				if (System.currentTimeMillis() - lastSweep >= TIMEOUT / 2) {
+					sweep(selector);
+					lastSweep = System.currentTimeMillis();
+				}
 			}
 		} catch (final IOException e) {
 			throw new IOError(e);
@@ -81,56 +451,92 @@ class WebService implements Runnable {
 	}
 }
 
-class HTTPChannel implements ReadableByteChannel {
+/** The head of an HTTP request, parsed from a buffer without blocking. */
+final class HTTPRequest {
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	String method;
+	/** The path of the requested URL. */
+	String url;
+	/** The query string of the requested URL, without the question mark; empty if there is none. */
+	String query;
+	/** The Content-Length of the request, or 0 if there is none. */
+	int length;
+	/** Whether the client wants the connection to stay open after this request. */
+	boolean keepAlive;
+	/** Whether the client waits for a 100 Continue response before sending the body. */
+	boolean expectContinue;
+	/** Whether the body is sent with a transfer coding, such as chunked, which is not supported. */
+	boolean chunked;
 
-	private final SocketChannel chan;
-	private int remaining;
-	final String url;
+	private HTTPRequest() { /* Use parse */ }
 
-	HTTPChannel(final SocketChannel chan) throws IOException {
-		this.chan = chan;
-		url = readline().split(" ")[1];
-		String line = ".";
-		while (!line.isEmpty()) {
-			line = readline();
-			if (line.startsWith("Content-Length: ")) {
-				remaining = Integer.parseInt(line.replace("Content-Length: ", ""));
+	/** Parses a request head from a buffer. If the head is complete, the buffer is positioned
+	  * after it; otherwise it is left unchanged.
+	  * @return the request, or null if the buffer does not contain a whole head yet */
+	static HTTPRequest parse(final ByteBuffer buffer) throws ProtocolException {
+		final int start = buffer.position();
+		String line = readline(buffer);
+		while (line != null && line.isEmpty()) {
+			// Tolerate blank lines between requests
+			line = readline(buffer);
+		}
+		if (line == null) {
+			buffer.position(start);
+			return null;
+		}
+		final String[] words = line.split(" ");
+		if (words.length < 2) {
+			throw new ProtocolException("Malformed request line: " + line);
+		}
+		final HTTPRequest request = new HTTPRequest();
+		request.method = words[0];
+		final int question = words[1].indexOf('?');
+		request.url = question == -1 ? words[1] : words[1].substring(0, question);
+		request.query = question == -1 ? "" : words[1].substring(question + 1);
+		final boolean http11 = words.length < 3 || !words[2].equals("HTTP/1.0");
+		request.keepAlive = http11;
+		for (line = readline(buffer); line != null && !line.isEmpty(); line = readline(buffer)) {
+			final int colon = line.indexOf(':');
+			if (colon == -1) {
+				continue;
+			}
+			final String name = line.substring(0, colon).trim(), value = line.substring(colon + 1).trim();
+			if (name.equalsIgnoreCase("Content-Length")) {
+				try {
+					request.length = Integer.parseInt(value);
+				} catch (final NumberFormatException e) {
+					throw new ProtocolException("Bad Content-Length: " + value);
+				}
+				if (request.length < 0) {
+					throw new ProtocolException("Bad Content-Length: " + value);
+				}
+			} else if (name.equalsIgnoreCase("Connection")) {
+				request.keepAlive = http11 ? !value.equalsIgnoreCase("close") : value.equalsIgnoreCase("keep-alive");
+			} else if (name.equalsIgnoreCase("Expect")) {
+				request.expectContinue = value.equalsIgnoreCase("100-continue");
+			} else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+				request.chunked = !value.equalsIgnoreCase("identity");
 			}
 		}
-	}
-
-	private String readline() throws IOException {
-		final ByteBuffer buffer = ByteBuffer.allocate(1);
-		final StringBuilder line = new StringBuilder();
-		char c = '\0';
-		while (c != '\n') {
-			chan.read(buffer);
-			buffer.flip();
-			c = (char) buffer.get();
-			line.append(c);
-			buffer.clear();
+		if (line == null) {
+			buffer.position(start);
+			return null;
 		}
-		return line.toString().trim();
+		return request;
 	}
 
-	@Override
-	public int read(final ByteBuffer dest) throws IOException {
-		if (remaining <= 0) {
-			return -1;
+	/* Returns the next line without its terminator, or null if it is not complete yet. */
+	private static String readline(final ByteBuffer buffer) {
+		for (int i = buffer.position(); i < buffer.limit(); i++) {
+			if (buffer.get(i) == '\n') {
+				final int end = i > buffer.position() && buffer.get(i - 1) == '\r' ? i - 1 : i;
+				final String line = new String(buffer.array(), buffer.arrayOffset() + buffer.position(),
+					end - buffer.position(), ASCII);
+				buffer.position(i + 1);
+				return line;
+			}
 		}
-		final int read = chan.read(dest);
-		remaining -= read;
-		return read;
-	}
-
-	@Override
-	public boolean isOpen() {
-		return chan.isOpen();
-	}
-
-	@Override
-	public void close() throws IOException {
-		// Do not close the underlying channel.
-		// This is a protection against SAX’s abusive close requests.
+		return null;
 	}
 }
@@ -0,0 +1,144 @@
+/*
+ * This file is part of DraWall.
+ * DraWall is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * DraWall is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of the GNU
+ * General Public License along with DraWall. If not, see <http://www.gnu.org/licenses/>.
+ * © 2012–2014 Nathanaël Jourdane
+ * © 2014-2015 Victor Adam
+ */
+
+package cc.drawall.dov;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+
+import cc.drawall.Exporter;
+import cc.drawall.Output;
+
+/** Outputs a vector to DOV, as described in doc/Specs.md.
+  * Values are written straight into a ShortBuffer view of a direct buffer. Since DOV only
+  * has straight lines, curves are flattened before reaching this exporter, within the
+  * tolerance given by --flatten. */
+public class DOVExporter extends Exporter {
+	static final short MAGIC_1 = 0x2339;
+	static final short MAGIC_2 = (short) 0xFFAF;
+	static final short DIRECTIVE = (short) 0xFFFF;
+	static final short MOVE = 0x0001;
+	static final short COLOR = (short) 0xC010;
+
+	/* Largest coordinate, since 0xFFFF introduces directives. */
+	private static final int MAX = 0xFFFE;
+
+	private ByteBuffer data = ByteBuffer.allocateDirect(4096);
+	private ShortBuffer shorts = data.asShortBuffer();
+	private final double[] segment = new double[6];
+
+	/* Start of the current subpath, in DOV units. */
+	private double moveX;
+	private double moveY;
+
+	@Override
+	protected boolean fills() {
+		return false;
+	}
+
+	@Override
+	protected boolean curves() {
+		return false;
+	}
+
+	@Override
+	protected ByteBuffer header(final double width, final double height, final double ratio) {
+		shorts.clear();
+		ensure(6);
+		shorts.put(MAGIC_1).put(MAGIC_2).put((short) 0).put((short) 0)
+			.put((short) Math.min(0xFFFF, (int) width)).put((short) Math.min(0xFFFF, (int) height));
+		return done();
+	}
+
+	@Override
+	protected ByteBuffer color(final double red, final double green, final double blue) {
+		shorts.clear();
+		ensure(4);
+		shorts.put(DIRECTIVE).put(COLOR)
+			.put((short) (component(red) << 8 | component(green))).put((short) (component(blue) << 8 | 0xFF));
+		return done();
+	}
+
+	@Override
+	protected ByteBuffer segment(final int type, final double[] coords) {
+		shorts.clear();
+		put(type, coords);
+		return done();
+	}
+
+	@Override
+	protected ByteBuffer segments(final byte[] types, final double[] coords, final int count) {
+		shorts.clear();
+		for (int i = 0, j = 0; i < count; i++) {
+			final int size = Output.coordinates(types[i]);
+			System.arraycopy(coords, j, segment, 0, size);
+			j += size;
+			put(types[i], segment);
+		}
+		return done();
+	}
+
+	/* Appends the instructions for a single segment to the buffer. */
+	private void put(final int type, final double[] coords) {
+		switch (type) {
+		case 0:
+			ensure(4);
+			shorts.put(DIRECTIVE).put(MOVE);
+			moveX = coords[0] / ratio;
+			moveY = coords[1] / ratio;
+			point(moveX, moveY);
+			break;
+		case 1:
+			ensure(2);
+			point(coords[0] / ratio, coords[1] / ratio);
+			break;
+		case 4:
+			ensure(2);
+			point(moveX, moveY);
+			break;
+		default:
+			assert false : "Curves are flattened before reaching this exporter: " + type;
+		}
+	}
+
+	private void point(final double px, final double py) {
+		shorts.put((short) clamp(px)).put((short) clamp(py));
+	}
+
+	private static int clamp(final double value) {
+		return value < 0 ? 0 : value > MAX ? MAX : (int) (value + .5);
+	}
+
+	private static int component(final double value) {
+		return (int) (value * 255) & 0xFF;
+	}
+
+	/* Makes room for the specified number of values, keeping those already written. */
+	private void ensure(final int count) {
+		if (shorts.remaining() < count) {
+			final int position = shorts.position();
+			final ByteBuffer grown = ByteBuffer.allocateDirect(2 * (data.capacity() + 2 * count));
+			data.clear().limit(2 * position);
+			grown.put(data).clear();
+			data = grown;
+			shorts = data.asShortBuffer();
+			shorts.position(position);
+		}
+	}
+
+	/* Exposes the values written so far as bytes. */
+	private ByteBuffer done() {
+		data.clear().position(2 * shorts.position());
+		return written(data);
+	}
+}
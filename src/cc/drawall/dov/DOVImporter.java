@@ -0,0 +1,112 @@
+/*
+ * This file is part of DraWall.
+ * DraWall is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * DraWall is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of the GNU
+ * General Public License along with DraWall. If not, see <http://www.gnu.org/licenses/>.
+ * © 2012–2014 Nathanaël Jourdane
+ * © 2014-2015 Victor Adam
+ */
+
+package cc.drawall.dov;
+
+import static cc.drawall.dov.DOVExporter.COLOR;
+import static cc.drawall.dov.DOVExporter.DIRECTIVE;
+import static cc.drawall.dov.DOVExporter.MAGIC_1;
+import static cc.drawall.dov.DOVExporter.MAGIC_2;
+import static cc.drawall.dov.DOVExporter.MOVE;
+
+import java.io.IOError;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.InputMismatchException;
+import java.util.logging.Logger;
+
+import cc.drawall.Importer;
+import cc.drawall.Output;
+
+/** Importer used to parse DOV, as described in doc/Specs.md.
+  * Files are memory-mapped and walked as a ShortBuffer; other channels are read whole first.
+  * Segments are handed to the output in batches, between color changes. */
+public class DOVImporter implements Importer {
+	private static final Logger log = Logger.getLogger(DOVImporter.class.getName());
+
+	/* Number of segments handed to the output at once. */
+	private static final int BATCH = 4096;
+
+	private final byte[] types = new byte[BATCH];
+	private final double[] coords = new double[2 * BATCH];
+	private int count;
+
+	@Override
+	public void process(final ReadableByteChannel input, final Output output) {
+		final ShortBuffer data;
+		try {
+			data = read(input).asShortBuffer();
+		} catch (final IOException e) {
+			throw new IOError(e);
+		}
+		if (data.remaining() < 6 || data.get() != MAGIC_1 || data.get() != MAGIC_2) {
+			throw new InputMismatchException("Not a DOV file");
+		}
+		data.get();
+		data.get();
+		final int width = data.get() & 0xFFFF, height = data.get() & 0xFFFF;
+		// Unknown dimensions are stored as 0: keep the DOV units as they are
+		final double scale = width == 0 || height == 0 ? 1 : Math.max(width, height) / 65535.0;
+		output.setSize(width == 0 || height == 0 ? 65535 : width, width == 0 || height == 0 ? 65535 : height);
+		count = 0;
+		int type = 0;
+		while (data.remaining() >= 2) {
+			final short x = data.get(), y = data.get();
+			if (x != DIRECTIVE) {
+				types[count] = (byte) type;
+				coords[2 * count] = (x & 0xFFFF) * scale;
+				coords[2 * count + 1] = (y & 0xFFFF) * scale;
+				type = 1;
+				if (++count == BATCH) {
+					flush(output);
+				}
+			} else if (y == MOVE) {
+				type = 0;
+			} else if (y == COLOR && data.remaining() >= 2) {
+				flush(output);
+				final int redGreen = data.get() & 0xFFFF, blueAlpha = data.get() & 0xFFFF;
+				output.writeColor((redGreen >> 8) / 255.0, (redGreen & 0xFF) / 255.0, (blueAlpha >> 8) / 255.0);
+			} else {
+				log.warning(String.format("Ignoring unknown DOV directive 0x%04x", y & 0xFFFF));
+			}
+		}
+		flush(output);
+	}
+
+	private void flush(final Output output) {
+		if (count > 0) {
+			output.writeSegments(types, coords, count);
+			count = 0;
+		}
+	}
+
+	/* Maps the whole input if it is a file, or reads it into memory otherwise. */
+	private static ByteBuffer read(final ReadableByteChannel input) throws IOException {
+		if (input instanceof FileChannel) {
+			final FileChannel file = (FileChannel) input;
+			return file.map(FileChannel.MapMode.READ_ONLY, file.position(), file.size() - file.position());
+		}
+		ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+		while (input.read(buffer) >= 0) {
+			if (!buffer.hasRemaining()) {
+				buffer.flip();
+				buffer = ByteBuffer.allocateDirect(2 * buffer.capacity()).put(buffer);
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+}
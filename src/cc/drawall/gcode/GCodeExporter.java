@@ -25,6 +25,16 @@ public class GCodeExporter extends Exporter {
 		super("G0 X% Y%", "G1 X% Y%", "G5.1 I% J% X% Y%", "G5 I% J% P% Q% X% Y%", "");
 	}
 
+	@Override
+	protected boolean centerline() {
+		return true;
+	}
+
+	@Override
+	protected boolean fills() {
+		return false;
+	}
+
 	@Override
 	protected ByteBuffer header(final double width, final double height, final double ratio) {
 		return format("; %dx%d\n; Neatly %s\n", (int) width, (int) height, COMMENT);
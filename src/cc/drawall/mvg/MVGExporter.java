@@ -19,6 +19,8 @@ import cc.drawall.Exporter;
 
 /** Outputs a vector as SVG. */
 public class MVGExporter extends Exporter {
+	private static final byte[] FILL = ascii("'\nfill '#");
+	private static final byte[] PATH = ascii("'\npath '");
 
 	/** Constructor. */
 	public MVGExporter() {
@@ -33,7 +35,8 @@ public class MVGExporter extends Exporter {
 
 	@Override
 	protected ByteBuffer color(final double red, final double green, final double blue) {
-		return format("'\nfill '#%02x%02x%02x'\npath '", (int) (red * 255),
-			(int) (green * 255), (int) (blue * 255));
+		buffer.clear();
+		putHex(putHex(putHex(buffer.put(FILL), red), green), blue).put(PATH);
+		return written(buffer);
 	}
 }
@@ -20,13 +20,38 @@ import cc.drawall.Exporter;
 /** Outputs a vector to Polargraph code. */
 public class PGExporter extends Exporter {
 	private static final int WIDTH = Integer.getInteger("polargraph.width", 7500);
+	private static final byte[] PEN_UP = ascii("C14,END\n");
+	private static final byte[] MOVE = ascii("C17,");
+	private static final byte[] END = ascii(",END\n");
+	private static final byte[] PEN_DOWN = ascii("C13,END\n");
+
+	@Override
+	protected boolean centerline() {
+		return true;
+	}
+
+	@Override
+	protected boolean fills() {
+		return false;
+	}
+
+	@Override
+	protected boolean curves() {
+		return false;
+	}
 
 	@Override
 	protected ByteBuffer segment(final int type, final double[] coords) {
 		final double x = coords[0], y = coords[1];
-		return format(
-			type == 0 ? "C14,END\nC17,%d,%d,END\nC13,END\n" :  "C17,%d,%d,END\n",
-			(int) Math.sqrt(x * x + y * y),
-			(int) Math.sqrt((WIDTH - x) * (WIDTH - x) + y * y));
+		buffer.clear();
+		if (type == 0) {
+			buffer.put(PEN_UP);
+		}
+		putInt(buffer.put(MOVE), (int) Math.sqrt(x * x + y * y)).put((byte) ',');
+		putInt(buffer, (int) Math.sqrt((WIDTH - x) * (WIDTH - x) + y * y)).put(END);
+		if (type == 0) {
+			buffer.put(PEN_DOWN);
+		}
+		return written(buffer);
 	}
 }
@@ -22,6 +22,9 @@ import cc.drawall.Exporter;
 /** Outputs a vector as a PDF. */
 public class PDFExporter extends Exporter {
 
+	private static final byte[] FILL = ascii("h f ");
+	private static final byte[] SETRGBCOLOR = ascii(" rg\n");
+
 	private final List<Integer> xref = new ArrayList<>(4);
 
 	public PDFExporter() {
@@ -46,7 +49,11 @@ public class PDFExporter extends Exporter {
 
 	@Override
 	protected ByteBuffer color(final double red, final double green, final double blue) {
-		return format("h f %.3f %.3f %.3f rg\n", red, green, blue);
+		buffer.clear();
+		putFixed(buffer.put(FILL), red, 3).put((byte) ' ');
+		putFixed(buffer, green, 3).put((byte) ' ');
+		putFixed(buffer, blue, 3).put(SETRGBCOLOR);
+		return written(buffer);
 	}
 
 	@Override
@@ -19,6 +19,8 @@ import cc.drawall.Exporter;
 
 /** Outputs a vector to PostScript code. */
 public class PSExporter extends Exporter {
+	private static final byte[] FILL = ascii("f ");
+	private static final byte[] SETRGBCOLOR = ascii(" rg\n");
 
 	public PSExporter() {
 		super("% % m", "% % l", "% % % % q", "% % % % % % c", "h");
@@ -38,7 +40,11 @@ public class PSExporter extends Exporter {
 
 	@Override
 	protected ByteBuffer color(final double red, final double green, final double blue) {
-		return format("f %.3f %.3f %.3f rg\n", red, green, blue);
+		buffer.clear();
+		putFixed(buffer.put(FILL), red, 3).put((byte) ' ');
+		putFixed(buffer, green, 3).put((byte) ' ');
+		putFixed(buffer, blue, 3).put(SETRGBCOLOR);
+		return written(buffer);
 	}
 
 	@Override
@@ -44,7 +44,7 @@ public class PSImporter implements Importer {
 	/** PostScript® is a trademark of Adobe Systems Incorporated. */
 
 	/** The correspondance between PostScript type and Java types is as follow:
-	  * Operator    Runnable
+	  * Operator    Operator
 	  * Real        Float
 	  * Integer     Float
 	  * Boolean     Boolean
@@ -54,8 +54,14 @@ public class PSImporter implements Importer {
 	  * String      String
 	  */
 
-	/** A Runnable that does nothing, used for ignored instructions. */
-	private static final Runnable NOOP = () -> {/*NOOP*/};
+	/** A built-in operator, acting on the state of the interpreter running it. */
+	@FunctionalInterface
+	private interface Operator {
+		void run(PSImporter ps);
+	}
+
+	/** An Operator that does nothing, used for ignored instructions. */
+	private static final Operator NOOP = ps -> {/*NOOP*/};
 
 	/** Pre-compiled regexes */
 	private static final Pattern NUMBER = Pattern.compile("[-+]?\\d*\\.?\\d+([eE][-+]?\\d+)?");
@@ -74,278 +80,286 @@ public class PSImporter implements Importer {
 	private final Map<Object, Void> literals = new IdentityHashMap<>();
 	private Iterator<Object> itr;
 
-	/** Main dictionary. */
-	private final PSDict vars = new PSDict(); {
+	/** System dictionary, holding the operators. It is built once and shared by every instance;
+	  * operators are stateless and act on the interpreter they are given. */
+	private static final Map<Object, Object> builtins = new HashMap<>();
+	static {
 		// The categories and their order are from PLRM3 8.1: Operator Summary
 		// Stack manipulation
-		builtin("pop", () -> stack.pop());
-		builtin("exch", () -> Collections.rotate(substack(2), 1));
-		builtin("dup", () -> stack.push(stack.peek()));
-		builtin("copy", () -> {
-			if (stack.peek() instanceof Double) {
-				stack.addAll(new ArrayList<>(substack((int) p(1))));
+		builtin("pop", ps -> ps.stack.pop());
+		builtin("exch", ps -> Collections.rotate(ps.substack(2), 1));
+		builtin("dup", ps -> ps.stack.push(ps.stack.peek()));
+		builtin("copy", ps -> {
+			if (ps.stack.peek() instanceof Double) {
+				ps.stack.addAll(new ArrayList<>(ps.substack((int) ps.p(1))));
 			} else {
-				pop2();
+				ps.pop2();
 			}
 		});
-		builtin("index", () -> stack.push(stack.get(-(int) p(1) + stack.size())));
-		builtin("roll", () -> Collections.rotate(substack((int) p(2)), (int) p()));
-		builtin("clear", () -> stack.clear());
-		builtin("cleartomark", () -> popTo(MARK));
+		builtin("index", ps -> ps.stack.push(ps.stack.get(-(int) ps.p(1) + ps.stack.size())));
+		builtin("roll", ps -> Collections.rotate(ps.substack((int) ps.p(2)), (int) ps.p()));
+		builtin("clear", ps -> ps.stack.clear());
+		builtin("cleartomark", ps -> ps.popTo(MARK));
 		// count, mark, cleartomark, counttomark (not in PDF)
 
 		// Math
-		builtin("idiv", () -> stack.push((float) ((int) p(2) / (int) p())));
-		builtin("mod",  () -> stack.push((float) ((int) p(2) % (int) p())));
-		builtin("add", () -> stack.push(p(2) + p()));
-		builtin("div", () -> stack.push(p(2) / p()));
-		builtin("mul", () -> stack.push(p(2) * p()));
-		builtin("sub", () -> stack.push(p(2) - p()));
-		builtin("abs", () -> stack.push(Math.abs(p(1))));
-		builtin("neg", () -> stack.push(-p(1)));
-		builtin("sin", () -> stack.push((float) Math.sin(Math.toRadians(p(1)))));
-		builtin("cos", () -> stack.push((float) Math.cos(Math.toRadians(p(1)))));
+		builtin("idiv", ps -> ps.stack.push((float) ((int) ps.p(2) / (int) ps.p())));
+		builtin("mod",  ps -> ps.stack.push((float) ((int) ps.p(2) % (int) ps.p())));
+		builtin("add", ps -> ps.stack.push(ps.p(2) + ps.p()));
+		builtin("div", ps -> ps.stack.push(ps.p(2) / ps.p()));
+		builtin("mul", ps -> ps.stack.push(ps.p(2) * ps.p()));
+		builtin("sub", ps -> ps.stack.push(ps.p(2) - ps.p()));
+		builtin("abs", ps -> ps.stack.push(Math.abs(ps.p(1))));
+		builtin("neg", ps -> ps.stack.push(-ps.p(1)));
+		builtin("sin", ps -> ps.stack.push((float) Math.sin(Math.toRadians(ps.p(1)))));
+		builtin("cos", ps -> ps.stack.push((float) Math.cos(Math.toRadians(ps.p(1)))));
 		// ceiling, floor, round, truncate, sqrt, atan, exp, ln, log
 		// rand, srand, rrand
 
 		// Array
-		builtin("array", () -> stack.push(literal(new Object[(int) p(1)])));
-		vars.put("[", MARK);
-		builtin("]", () -> stack.push(literal(popTo(MARK))));
-		builtin("astore", () -> {
-			final Object[] array = (Object[]) stack.pop();
-			stack.push(substack(array.length).toArray(array));
+		builtin("array", ps -> ps.stack.push(ps.literal(new Object[(int) ps.p(1)])));
+		builtins.put("[", MARK);
+		builtin("]", ps -> ps.stack.push(ps.literal(ps.popTo(MARK))));
+		builtin("astore", ps -> {
+			final Object[] array = (Object[]) ps.stack.pop();
+			ps.stack.push(ps.substack(array.length).toArray(array));
 		});
-		builtin("length", () -> {
-			final Object o = stack.pop();
-			stack.push(o instanceof Object[] ? ((Object[]) o).length : 0f);
+		builtin("length", ps -> {
+			final Object o = ps.stack.pop();
+			ps.stack.push(o instanceof Object[] ? ((Object[]) o).length : 0f);
 		});
 
 		// Dictionary
-		vars.put("$error", vars);
-		vars.put("errordict", vars);
-		vars.put("userdict", vars);
-		vars.put("statusdict", vars);
-		vars.put("systemdict", vars);
-		vars.put("currentdict", vars);
-		vars.put("currentsystemparams", vars);
-		builtin("countdictstack", () -> stack.push(1f));
-		builtin("dictstack", () -> ((Object[]) stack.peek())[0] = vars);
-
-		builtin("dict", () -> stack.push(p(1) > 0 ? vars : null));
-		builtin("begin", () -> stack.pop());
+		builtin("countdictstack", ps -> ps.stack.push(1f));
+		builtin("dictstack", ps -> ((Object[]) ps.stack.peek())[0] = ps.vars);
+
+		builtin("dict", ps -> ps.stack.push(ps.p(1) > 0 ? ps.vars : null));
+		builtin("begin", ps -> ps.stack.pop());
 		builtin("end", NOOP);
-		builtin("load", () -> stack.push(getVar(stack.pop())));
-		builtin("def", () -> vars.put(pop2(), stack.pop()));
-		builtin("get", () -> {
-			final Object o = pop2();
-			stack.push(o instanceof PSDict ? ((PSDict) o).get(stack.pop())
-				: o instanceof Object[] ? ((Object[]) o)[(int) p(1)]
-				: ((String) o).codePointAt((int) p(1)));
+		builtin("load", ps -> ps.stack.push(ps.getVar(ps.stack.pop())));
+		builtin("def", ps -> ps.vars.put(ps.pop2(), ps.stack.pop()));
+		builtin("get", ps -> {
+			final Object o = ps.pop2();
+			ps.stack.push(o instanceof PSDict ? ((PSDict) o).get(ps.stack.pop())
+				: o instanceof Object[] ? ((Object[]) o)[(int) ps.p(1)]
+				: ((String) o).codePointAt((int) ps.p(1)));
 		});
-		builtin("put", () -> {
-			final Object value = stack.pop();
-			final Object o = pop2();
+		builtin("put", ps -> {
+			final Object value = ps.stack.pop();
+			final Object o = ps.pop2();
 			if (o instanceof PSDict) {
-				((PSDict) o).put(stack.pop(), value);
+				((PSDict) o).put(ps.stack.pop(), value);
 			} else {
-				((Object[]) o)[(int) p(1)] = value;
+				((Object[]) o)[(int) ps.p(1)] = value;
 			}
 		});
-		builtin("known", () -> stack.push(((PSDict) pop2()).containsKey(stack.pop())));
-		builtin("where", () -> {
-			final boolean exists = vars.containsKey(stack.pop());
+		builtin("known", ps -> ps.stack.push(((PSDict) ps.pop2()).containsKey(ps.stack.pop())));
+		builtin("where", ps -> {
+			final boolean exists = ps.vars.containsKey(ps.stack.pop());
 			if (exists) {
-				stack.push(vars);
+				ps.stack.push(ps.vars);
 			}
-			stack.push(exists);
+			ps.stack.push(exists);
 		});
 		builtin("cleardictstack", NOOP);
 
 		// String
-		builtin("string", () -> stack.push(new String(new char[(int) p(1)])));
+		builtin("string", ps -> ps.stack.push(new String(new char[(int) ps.p(1)])));
 
 		// Relational, boolean and bitwise
-		builtin("eq", () -> stack.push(stack.pop().equals(stack.pop())));
-		builtin("ne", () -> stack.push(!stack.pop().equals(stack.pop())));
-		builtin("gt", () -> stack.push(compare() < 0));
-		builtin("lt", () -> stack.push(compare() > 0));
-		builtin("ge", () -> stack.push(compare() <= 0));
-		builtin("le", () -> stack.push(compare() >= 0));
-		builtin("and", () -> stack.push(popBool() & popBool()));
-		builtin("or",  () -> stack.push(popBool() | popBool()));
-		builtin("xor", () -> stack.push(popBool() ^ popBool()));
-		builtin("not", () -> stack.push(!popBool()));
+		builtin("eq", ps -> ps.stack.push(ps.stack.pop().equals(ps.stack.pop())));
+		builtin("ne", ps -> ps.stack.push(!ps.stack.pop().equals(ps.stack.pop())));
+		builtin("gt", ps -> ps.stack.push(ps.compare() < 0));
+		builtin("lt", ps -> ps.stack.push(ps.compare() > 0));
+		builtin("ge", ps -> ps.stack.push(ps.compare() <= 0));
+		builtin("le", ps -> ps.stack.push(ps.compare() >= 0));
+		builtin("and", ps -> ps.stack.push(ps.popBool() & ps.popBool()));
+		builtin("or",  ps -> ps.stack.push(ps.popBool() | ps.popBool()));
+		builtin("xor", ps -> ps.stack.push(ps.popBool() ^ ps.popBool()));
+		builtin("not", ps -> ps.stack.push(!ps.popBool()));
 		// bitshift
-		vars.put("true", Boolean.TRUE);
-		vars.put("false", Boolean.FALSE);
-		vars.put("null", null);
+		builtins.put("true", Boolean.TRUE);
+		builtins.put("false", Boolean.FALSE);
+		builtins.put("null", null);
 
 		// Flow control
-		builtin("exec", () -> execute(stack.pop(), true));
-		builtin("stopped", () -> stack.push(Boolean.FALSE));
+		builtin("exec", ps -> ps.execute(ps.stack.pop(), true));
+		builtin("stopped", ps -> ps.stack.push(Boolean.FALSE));
 		builtin("quit", NOOP);
-		builtin("if", () -> {
-			final Object code = stack.pop();
-			if ((boolean) stack.pop()) {
-				execute(code, true);
+		builtin("if", ps -> {
+			final Object code = ps.stack.pop();
+			if ((boolean) ps.stack.pop()) {
+				ps.execute(code, true);
 			}
 		});
-		builtin("ifelse", () -> {
-			final Object ifFalse = stack.pop();
-			final Object ifTrue = stack.pop();
-			execute((boolean) stack.pop() ? ifTrue : ifFalse, true);
+		builtin("ifelse", ps -> {
+			final Object ifFalse = ps.stack.pop();
+			final Object ifTrue = ps.stack.pop();
+			ps.execute((boolean) ps.stack.pop() ? ifTrue : ifFalse, true);
 		});
-		builtin("repeat", () -> {
-			final Object code = stack.pop();
-			for (int i = (int) p(1); i > 0; i--) {
-				execute(code, true);
+		builtin("repeat", ps -> {
+			final Object code = ps.stack.pop();
+			for (int i = (int) ps.p(1); i > 0; i--) {
+				ps.execute(code, true);
 			}
 		});
-		builtin("for", () -> {
-			final Object code = stack.pop();
-			final float max = p(1), inc = p(1);
-			for (float i = p(1); i < max; i += inc) {
-				stack.push(i);
-				execute(code, true);
+		builtin("for", ps -> {
+			final Object code = ps.stack.pop();
+			final float max = ps.p(1), inc = ps.p(1);
+			for (float i = ps.p(1); i < max; i += inc) {
+				ps.stack.push(i);
+				ps.execute(code, true);
 			}
 		});
-		builtin("forall", () -> {
-			final Object code = stack.pop();
-			final Object array = stack.pop();
+		builtin("forall", ps -> {
+			final Object code = ps.stack.pop();
+			final Object array = ps.stack.pop();
 			(array instanceof String ? ((String) array).chars().mapToObj(c -> c)
 				: Arrays.stream((Object[]) array)).forEach(c -> {
-				stack.push(c);
-				execute(code, true);
+				ps.stack.push(c);
+				ps.execute(code, true);
 			});
 		});
 		// exec
 
 		// Type, attributes and conversion operators
-		builtin("type", () -> stack.push(stack.pop() instanceof String ? "nametype" : null));
+		builtin("type", ps -> ps.stack.push(ps.stack.pop() instanceof String ? "nametype" : null));
 		// cvi
-		builtin("cvx", () -> literals.remove(stack.peek()));
+		builtin("cvx", ps -> ps.literals.remove(ps.stack.peek()));
 		builtin("cvr", NOOP);
-		builtin("cvlit", () -> stack.push(literal(stack.peek())));
-		builtin("rcheck", () -> stack.push(stack.pop() != null));
-		builtin("wcheck", () -> stack.push(stack.pop() != null));
-		builtin("xcheck", () -> stack.push(stack.pop() != null));
+		builtin("cvlit", ps -> ps.stack.push(ps.literal(ps.stack.peek())));
+		builtin("rcheck", ps -> ps.stack.push(ps.stack.pop() != null));
+		builtin("wcheck", ps -> ps.stack.push(ps.stack.pop() != null));
+		builtin("xcheck", ps -> ps.stack.push(ps.stack.pop() != null));
 		builtin("readonly", NOOP);
 		builtin("executeonly", NOOP);
 
 		// File operators
-		builtin("==", () -> System.out.println(stack.pop().toString()));
-		builtin("stack", () -> System.out.println(Arrays.deepToString(stack.toArray())));
+		builtin("==", ps -> System.out.println(ps.stack.pop().toString()));
+		builtin("stack", ps -> System.out.println(Arrays.deepToString(ps.stack.toArray())));
 
 		// Miscellaneous
-		vars.put("ps_level", 1f);
-		builtin("currentglobal", () -> stack.push(Boolean.FALSE));
-		builtin("bind", () -> stack.push(Arrays.stream((Object[]) stack.pop()).map(
-			o -> vars.containsKey(o) ? vars.get(o) : o
+		builtins.put("ps_level", 1f);
+		builtin("currentglobal", ps -> ps.stack.push(Boolean.FALSE));
+		builtin("bind", ps -> ps.stack.push(Arrays.stream((Object[]) ps.stack.pop()).map(
+			o -> ps.vars.containsKey(o) ? ps.vars.get(o) : o
 		).toArray()));
 
 		// Canvas State
-		builtin("gsave",         () -> g.save());
-		builtin("grestore",      () -> g.resetPath().restore());
-		builtin("grestoreall",   () -> g.resetPath().restore());
-		builtin("setlinecap",    () -> g.setLineCap(Canvas.LineCap.values()[(int) p(1)]));
-		builtin("setlinejoin",   () -> g.setLineJoin(Canvas.LineJoin.values()[(int) p(1)]));
-		builtin("setlinewidth",  () -> g.setStrokeWidth(p(1)));
-		builtin("setmiterlimit", () -> g.setMiterLimit(p(1)));
-		builtin("setdash",       () -> g.setDashArray(popArray()).setDashOffset(p(1)));
+		builtin("gsave",         ps -> ps.g.save());
+		builtin("grestore",      ps -> ps.g.resetPath().restore());
+		builtin("grestoreall",   ps -> ps.g.resetPath().restore());
+		builtin("setlinecap",    ps -> ps.g.setLineCap(Canvas.LineCap.values()[(int) ps.p(1)]));
+		builtin("setlinejoin",   ps -> ps.g.setLineJoin(Canvas.LineJoin.values()[(int) ps.p(1)]));
+		builtin("setlinewidth",  ps -> ps.g.setStrokeWidth(ps.p(1)));
+		builtin("setmiterlimit", ps -> ps.g.setMiterLimit(ps.p(1)));
+		builtin("setdash",       ps -> ps.g.setDashArray(ps.popArray()).setDashOffset(ps.p(1)));
 		builtin("showpage", NOOP);
-		builtin("setrgbcolor", () -> g.setColor(Canvas.Mode.BASE, Color.color(p(3), p(), p())));
-		builtin("sethsbcolor", () -> g.setColor(Canvas.Mode.BASE, Color.hsb(p(3), p(), p())));
-		builtin("setcmykcolor", () -> substack(4).clear());
-		builtin("setgray", () -> g.setColor(Canvas.Mode.BASE, Color.gray(p(1))));
-		builtin("clippath", () -> {
-			g.resetPath();
-			g.append(g.getClip());
+		builtin("setrgbcolor", ps -> ps.g.setColor(Canvas.Mode.BASE, Color.color(ps.p(3), ps.p(), ps.p())));
+		builtin("sethsbcolor", ps -> ps.g.setColor(Canvas.Mode.BASE, Color.hsb(ps.p(3), ps.p(), ps.p())));
+		builtin("setcmykcolor", ps -> ps.substack(4).clear());
+		builtin("setgray", ps -> ps.g.setColor(Canvas.Mode.BASE, Color.gray(ps.p(1))));
+		builtin("clippath", ps -> {
+			ps.g.resetPath();
+			ps.g.append(ps.g.getClip());
 		});
-		builtin("pathbbox", () -> {
-			final Rectangle2D r = g.pathBounds();
-			stack.push((float) r.getMinX());
-			stack.push((float) r.getMinY());
-			stack.push((float) r.getMaxX());
-			stack.push((float) r.getMaxY());
+		builtin("pathbbox", ps -> {
+			final Rectangle2D r = ps.g.pathBounds();
+			ps.stack.push((float) r.getMinX());
+			ps.stack.push((float) r.getMinY());
+			ps.stack.push((float) r.getMaxX());
+			ps.stack.push((float) r.getMaxY());
 		});
 
-		builtin("currentcolortransfer", () -> stack.push(NOOP));
-		builtin("currentblackgeneration", () -> stack.push(NOOP));
-		builtin("currentundercolorremoval", () -> stack.push(NOOP));
-		builtin("currentflat", () -> stack.push(0f));
-		builtin("currentsmoothness", () -> stack.push(0f));
-		builtin("setoverprint", () -> popBool());
+		builtin("currentcolortransfer", ps -> ps.stack.push(NOOP));
+		builtin("currentblackgeneration", ps -> ps.stack.push(NOOP));
+		builtin("currentundercolorremoval", ps -> ps.stack.push(NOOP));
+		builtin("currentflat", ps -> ps.stack.push(0f));
+		builtin("currentsmoothness", ps -> ps.stack.push(0f));
+		builtin("setoverprint", ps -> ps.popBool());
 
 		// Coordinate systems
-		builtin("matrix", () -> stack.push(new float[]{1.0f, 0.0f, 0.0f, 1.0f, 0.0f, 0.0f}));
+		builtin("matrix", ps -> ps.stack.push(new float[]{1.0f, 0.0f, 0.0f, 1.0f, 0.0f, 0.0f}));
 		// currentmatrix
-		builtin("setmatrix", () -> g.getTransform().setTransform(popMatrix()));
-		builtin("concat", () -> g.getTransform().concatenate(popMatrix()));
-		builtin("rotate", () -> g.getTransform().rotate(Math.toRadians(p(1))));
-		builtin("scale", () -> g.getTransform().scale(p(2), p()));
-		builtin("translate", () -> g.getTransform().translate(p(2), p()));
+		builtin("setmatrix", ps -> ps.g.getTransform().setTransform(ps.popMatrix()));
+		builtin("concat", ps -> ps.g.getTransform().concatenate(ps.popMatrix()));
+		builtin("rotate", ps -> ps.g.getTransform().rotate(Math.toRadians(ps.p(1))));
+		builtin("scale", ps -> ps.g.getTransform().scale(ps.p(2), ps.p()));
+		builtin("translate", ps -> ps.g.getTransform().translate(ps.p(2), ps.p()));
 
 		// Path construction
-		builtin("newpath", () -> g.resetPath());
-		builtin("moveto", () -> g.setRelative(false).moveTo(p(2), p()));
-		builtin("rmoveto", () -> g.setRelative(true).moveTo(p(2), p()));
-		builtin("lineto", () -> g.setRelative(false).lineTo(p(2), p()));
-		builtin("rlineto", () -> g.setRelative(true).lineTo(p(2), p()));
-		builtin("curveto", () -> g.setRelative(false).lineTo(p(6), p(), p(), p(), p(), p()));
-		builtin("rcurveto", () -> g.setRelative(true).lineTo(p(6), p(), p(), p(), p(), p()));
-		builtin("closepath", () -> g.closePath());
-		builtin("currentpoint", () -> {
-			final Point2D point = g.getCurrentPoint();
-			stack.push((float) point.getX());
-			stack.push((float) point.getY());
+		builtin("newpath", ps -> ps.g.resetPath());
+		builtin("moveto", ps -> ps.g.setRelative(false).moveTo(ps.p(2), ps.p()));
+		builtin("rmoveto", ps -> ps.g.setRelative(true).moveTo(ps.p(2), ps.p()));
+		builtin("lineto", ps -> ps.g.setRelative(false).lineTo(ps.p(2), ps.p()));
+		builtin("rlineto", ps -> ps.g.setRelative(true).lineTo(ps.p(2), ps.p()));
+		builtin("curveto", ps -> ps.g.setRelative(false).lineTo(ps.p(6), ps.p(), ps.p(), ps.p(), ps.p(), ps.p()));
+		builtin("rcurveto", ps -> ps.g.setRelative(true).lineTo(ps.p(6), ps.p(), ps.p(), ps.p(), ps.p(), ps.p()));
+		builtin("closepath", ps -> ps.g.closePath());
+		builtin("currentpoint", ps -> {
+			final Point2D point = ps.g.getCurrentPoint();
+			ps.stack.push((float) point.getX());
+			ps.stack.push((float) point.getY());
 		});
 
 		// Painting
-		builtin("stroke", () -> g.stroke().resetPath());
-		builtin("fill", () -> g.setWindingRule(Path2D.WIND_NON_ZERO).fill().resetPath());
-		builtin("eofill", () -> g.setWindingRule(Path2D.WIND_EVEN_ODD).fill().resetPath());
-		builtin("clip", () -> g.clip(g.getPath()));
+		builtin("stroke", ps -> ps.g.stroke().resetPath());
+		builtin("fill", ps -> ps.g.setWindingRule(Path2D.WIND_NON_ZERO).fill().resetPath());
+		builtin("eofill", ps -> ps.g.setWindingRule(Path2D.WIND_EVEN_ODD).fill().resetPath());
+		builtin("clip", ps -> ps.g.clip(ps.g.getPath()));
 
 		// Insideness-testing
 
 		// Glyph and font
-		builtin("definefont", () -> vars.put(pop2(), stack.peek()));
-		builtin("findfont", () -> stack.push(((String) stack.pop()).replace('-', ' ')));
-		builtin("scalefont", () -> g.setFontSize(p(1)));
-		builtin("setfont", () -> g.setFont((String) stack.pop()));
-		builtin("show", () -> {
-			g.charpath((String) stack.pop());
-			g.fill();
+		builtin("definefont", ps -> ps.vars.put(ps.pop2(), ps.stack.peek()));
+		builtin("findfont", ps -> ps.stack.push(((String) ps.stack.pop()).replace('-', ' ')));
+		builtin("scalefont", ps -> ps.g.setFontSize(ps.p(1)));
+		builtin("setfont", ps -> ps.g.setFont((String) ps.stack.pop()));
+		builtin("show", ps -> {
+			ps.g.charpath((String) ps.stack.pop());
+			ps.g.fill();
 		});
-		builtin("ashow", () -> {
-			g.charpath((String) stack.pop());
-			g.fill();
-			p(2);
-			p();
+		builtin("ashow", ps -> {
+			ps.g.charpath((String) ps.stack.pop());
+			ps.g.fill();
+			ps.p(2);
+			ps.p();
 		});
-		builtin("charpath", () -> {
-			stack.pop(); // boolean stroke
-			g.charpath((String) stack.pop());
+		builtin("charpath", ps -> {
+			ps.stack.pop(); // boolean stroke
+			ps.g.charpath((String) ps.stack.pop());
 		});
 
 		// Unhandled but ignored
-		builtin("defineresource", () -> {
-			stack.pop();
-			vars.put(pop2(), stack.peek());
+		builtin("defineresource", ps -> {
+			ps.stack.pop();
+			ps.vars.put(ps.pop2(), ps.stack.peek());
 		});
-		builtin("findresource", () -> {
-			pop2(); //category
-			stack.push(vars.get(stack.pop())); // instance
+		builtin("findresource", ps -> {
+			ps.pop2(); //category
+			ps.stack.push(ps.vars.get(ps.stack.pop())); // instance
 		});
-		builtin("currentscreen", () -> {
-			stack.push(0f); //frequency
-			stack.push(0f); //angle
-			stack.push(0f); //halftone
+		builtin("currentscreen", ps -> {
+			ps.stack.push(0f); //frequency
+			ps.stack.push(0f); //angle
+			ps.stack.push(0f); //halftone
 		});
-		builtin("setglobal", () -> stack.pop());
-		builtin("save", () -> stack.push(null));
-		builtin("restore", () -> stack.pop());
+		builtin("setglobal", ps -> ps.stack.pop());
+		builtin("save", ps -> ps.stack.push(null));
+		builtin("restore", ps -> ps.stack.pop());
+	}
+
+	private static final Map<Object, Object> SYSTEM_DICT = Collections.unmodifiableMap(builtins);
+
+	private static final String[] DICT_NAMES = {"$error", "errordict", "userdict", "statusdict",
+		"systemdict", "currentdict", "currentsystemparams"};
+
+	/** User dictionary, layered over the system dictionary. */
+	private final PSDict vars = new PSDict(SYSTEM_DICT); {
+		// There is a single dictionary in the dictionary stack, standing for all of them
+		for (final String name: DICT_NAMES) {
+			vars.put(name, vars);
+		}
 	}
 
 	private int compare() {
@@ -382,8 +396,8 @@ public class PSImporter implements Importer {
 	private void execute(final Object object, final boolean doProc) {
 		if (literals.containsKey(object)) {
 			stack.push(object);
-		} else if (object instanceof Runnable) {      // built-in operator
-			((Runnable) object).run();
+		} else if (object instanceof Operator) {      // built-in operator
+			((Operator) object).run(this);
 		} else if (object instanceof String) { // name object
 			execute(getVar(object), true);
 		} else if (doProc && object instanceof Object[]) {
@@ -424,8 +438,8 @@ public class PSImporter implements Importer {
 	// Dict manipulation //
 	///////////////////////
 
-	private void builtin(final String key, final Runnable operation) {
-		vars.put(key, operation);
+	private static void builtin(final String key, final Operator operation) {
+		builtins.put(key, operation);
 	}
 
 	private Object getVar(final Object key) {
@@ -490,7 +504,24 @@ public class PSImporter implements Importer {
 		return new AffineTransform(matrix);
 	}
 
+	/** A dictionary, which may fall back to a parent for the keys it doesn't define. */
 	static final class PSDict extends HashMap<Object, Object> {
+		private final Map<Object, Object> parent;
+
+		PSDict(final Map<Object, Object> parent) {
+			this.parent = parent;
+		}
+
+		@Override
+		public boolean containsKey(final Object key) {
+			return super.containsKey(key) || parent != null && parent.containsKey(key);
+		}
+
+		@Override
+		public Object get(final Object key) {
+			return super.containsKey(key) || parent == null ? super.get(key) : parent.get(key);
+		}
+
 		@Override
 		public boolean equals(final Object that) {
 			return this == that;
@@ -19,6 +19,8 @@ import cc.drawall.Exporter;
 
 /** Outputs a vector as SVG. */
 public class SVGExporter extends Exporter {
+	private static final byte[] FILL = ascii("'/><path stroke='none' fill='#");
+	private static final byte[] PATH = ascii("' d='");
 
 	public SVGExporter() {
 		super("M%,%", "L%,%", "Q%,% %,%", "C%,% %,% %,%", "Z");
@@ -36,8 +38,9 @@ public class SVGExporter extends Exporter {
 
 	@Override
 	protected ByteBuffer color(final double red, final double green, final double blue) {
-		return format("'/><path stroke='none' fill='#%02x%02x%02x' d='",
-			(int) (red * 255), (int) (green * 255), (int) (blue * 255));
+		buffer.clear();
+		putHex(putHex(putHex(buffer.put(FILL), red), green), blue).put(PATH);
+		return written(buffer);
 	}
 
 	@Override